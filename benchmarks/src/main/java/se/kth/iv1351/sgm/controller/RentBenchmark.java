@@ -0,0 +1,73 @@
+package se.kth.iv1351.sgm.controller;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.sgm.integration.InMemorySchoolDAO;
+import se.kth.iv1351.sgm.model.RentalException;
+
+/**
+ * Measures the controller's rent path over the in-memory DAO, so that the numbers
+ * show the cost of the controller itself: validation of the end day, the rental
+ * rules and the update of the availability index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RentBenchmark {
+    private static final int STUDENTS = 10_000;
+
+    @Param({"function", "statements"})
+    public String rentMode;
+
+    @Param({"1000", "100000"})
+    public int instruments;
+
+    private Controller ctrl;
+    private String validEndDay;
+    private String pastEndDay;
+    private int nextRental;
+
+    @Setup(Level.Iteration)
+    public void createController() throws Exception {
+        System.setProperty("sgm.rent.mode", rentMode);
+        ctrl = new Controller(InMemorySchoolDAO.withGeneratedData(STUDENTS, instruments, 1));
+        validEndDay = LocalDate.now().plusMonths(3).toString();
+        pastEndDay = LocalDate.now().minusDays(1).toString();
+        nextRental = 0;
+    }
+
+    @Benchmark
+    public boolean rejectPastEndDay() throws Exception {
+        try {
+            ctrl.createLease(1, 1, pastEndDay);
+            return false;
+        } catch (RentalException expected) {
+            return true;
+        }
+    }
+
+    @Benchmark
+    public int rentAndTerminate() throws Exception {
+        nextRental++;
+        int leaseId = ctrl.createLease(1 + nextRental % STUDENTS, 1 + nextRental % instruments, validEndDay);
+        ctrl.terminateLease(leaseId);
+        return leaseId;
+    }
+}
@@ -0,0 +1,121 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.kth.iv1351.sgm.model.Instrument;
+
+/**
+ * Measures the DAO calls made by <code>list</code> and <code>rent</code>. By default
+ * the in-memory DAO is measured with generated catalogs and lease histories of the
+ * given sizes. Run with <code>-p backend=jdbc</code> to measure the database configured
+ * by the <code>sgm.db.*</code> system properties instead, as it is; the sizes are then
+ * ignored and nothing is written to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchoolDAOBenchmark {
+    private static final int STUDENTS = 10_000;
+
+    @Param({"memory"})
+    public String backend;
+
+    @Param({"1000", "100000"})
+    public int instruments;
+
+    @Param({"0", "100000"})
+    public int leaseHistory;
+
+    // Whether current leases are read from the store of leases that have not ended, with ended leases retired
+    @Param({"false", "true"})
+    public boolean activeLeases;
+
+    @Param({"guitar"})
+    public String type;
+
+    private SchoolDAO schoolDb;
+    private int studentId;
+    private int instrumentId;
+
+    @Setup
+    public void createDAO() throws SchoolDBException {
+        if (backend.equals("jdbc")) {
+            schoolDb = new JdbcSchoolDAO();
+        } else {
+            schoolDb = InMemorySchoolDAO.withGeneratedData(STUDENTS, instruments, 1);
+            createLeaseHistory();
+        }
+        if (activeLeases) {
+            schoolDb.installActiveLeaseTable();
+            schoolDb.retireEndedLeases();
+        }
+        List<Instrument> all = schoolDb.readAllInstruments();
+        instrumentId = all.isEmpty() ? 1 : all.get(all.size() / 2).getId();
+        studentId = 1;
+    }
+
+    @TearDown
+    public void closeDAO() {
+        schoolDb.close();
+    }
+
+    @Benchmark
+    public List<Instrument> listAll() throws SchoolDBException {
+        return schoolDb.readRentableInstruments("");
+    }
+
+    @Benchmark
+    public List<Instrument> listType() throws SchoolDBException {
+        return schoolDb.readRentableInstruments(type);
+    }
+
+    @Benchmark
+    public int listFirstPage(Blackhole blackhole) throws SchoolDBException {
+        return schoolDb.readRentableInstruments("", 0, 20, blackhole::consume);
+    }
+
+    @Benchmark
+    public int studentLeaseCount() throws SchoolDBException {
+        int count = schoolDb.readStudentLeaseCount(studentId);
+        schoolDb.commit();
+        return count;
+    }
+
+    @Benchmark
+    public boolean canRentInstrument() throws SchoolDBException {
+        boolean canRent = schoolDb.readCanRentInstrument(instrumentId);
+        schoolDb.commit();
+        return canRent;
+    }
+
+    /**
+     * Creates leases and terminates them at once, so that they are history that the
+     * queries for current leases must skip.
+     */
+    private void createLeaseHistory() throws SchoolDBException {
+        String endDay = LocalDate.now().plusMonths(1).toString();
+        for (int i = 0; i < leaseHistory; i++) {
+            int leaseId = schoolDb.createLease(1 + i % STUDENTS, 1 + i % instruments, endDay);
+            schoolDb.updateLeaseEndDate(leaseId);
+        }
+    }
+}
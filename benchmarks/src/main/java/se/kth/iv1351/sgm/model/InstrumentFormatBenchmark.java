@@ -0,0 +1,63 @@
+package se.kth.iv1351.sgm.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures formatting of instruments, as done for every row printed by <code>list</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentFormatBenchmark {
+    private static final String[] TYPES = {"guitar", "piano", "drums", "violin"};
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    private List<Instrument> instruments;
+    private PrintStream out;
+
+    @Setup
+    public void createInstruments() {
+        instruments = new ArrayList<>(rows);
+        for (int id = 1; id <= rows; id++) {
+            instruments.add(new Instrument(id, 100 + id % 900, TYPES[id % TYPES.length], "Yamaha", "medium"));
+        }
+        out = new PrintStream(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public int toStringAll() {
+        int length = 0;
+        for (Instrument instrument : instruments) {
+            length += instrument.toString().length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public void printAll() {
+        for (Instrument instrument : instruments) {
+            out.println(instrument);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package se.kth.iv1351.sgm.view;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing of one line of user input into a command and its parameters, with
+ * the current parser and with the regular expression based parser it replaced. Before
+ * measuring, both parsers must agree on the measured line and on a set of edge cases,
+ * otherwise the benchmark fails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CmdLineBenchmark {
+    private static final String[] EDGE_CASES = {"", "   ", "\t", "list\tguitar", "\tlist guitar\t", "list \t guitar",
+            "-", "rent-", "list-", "rent-batch", "rentbatch x", "listx", "LIST Guitar", "frobnicate", "quit",
+            "terminate-student 3", "terminate 1,2,3", "list guitar --format json", "search type=guitar price<=100 --next",
+            null};
+    private static final int COMPARED_PARAMETERS = 8;
+
+    @Param({"list guitar", "rent 12 345 2021-06-30", "  terminate   42  ", "rent-batch leases.csv", "frobnicate 1 2"})
+    public String line;
+
+    @Setup(Level.Trial)
+    public void checkParity() {
+        checkParity(line);
+        for (String edgeCase : EDGE_CASES) {
+            checkParity(edgeCase);
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        CmdLine cmdLine = new CmdLine(line);
+        blackhole.consume(cmdLine.getCmd());
+        blackhole.consume(cmdLine.getParameter(0));
+        blackhole.consume(cmdLine.getParameter(2));
+    }
+
+    @Benchmark
+    public void parseLegacy(Blackhole blackhole) {
+        LegacyCmdLine cmdLine = new LegacyCmdLine(line);
+        blackhole.consume(cmdLine.getCmd());
+        blackhole.consume(cmdLine.getParameter(0));
+        blackhole.consume(cmdLine.getParameter(2));
+    }
+
+    private static void checkParity(String line) {
+        CmdLine cmdLine = new CmdLine(line);
+        LegacyCmdLine legacyCmdLine = new LegacyCmdLine(line);
+        if (cmdLine.getCmd() != legacyCmdLine.getCmd()) {
+            throw new IllegalStateException("The parsers disagree on the command of [" + line + "]: "
+                    + cmdLine.getCmd() + " but " + legacyCmdLine.getCmd());
+        }
+        for (int i = 0; i < COMPARED_PARAMETERS; i++) {
+            if (!Objects.equals(cmdLine.getParameter(i), legacyCmdLine.getParameter(i))) {
+                throw new IllegalStateException("The parsers disagree on parameter " + i + " of [" + line + "]: "
+                        + cmdLine.getParameter(i) + " but " + legacyCmdLine.getParameter(i));
+            }
+        }
+    }
+}
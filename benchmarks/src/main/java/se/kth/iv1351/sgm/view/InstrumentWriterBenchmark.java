@@ -0,0 +1,71 @@
+package se.kth.iv1351.sgm.view;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.sgm.model.Instrument;
+
+/**
+ * Measures writing a whole catalog with <code>list --format</code>, compared to the
+ * default output that prints each instrument's <code>toString</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentWriterBenchmark {
+    private static final String[] TYPES = {"guitar", "piano", "drums", "violin"};
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"csv", "json", "tsv"})
+    public String format;
+
+    private List<Instrument> instruments;
+    private PrintStream out;
+    private InstrumentWriter writer;
+
+    @Setup
+    public void createInstruments() {
+        instruments = new ArrayList<>(rows);
+        for (int id = 1; id <= rows; id++) {
+            instruments.add(new Instrument(id, 100 + id % 900, TYPES[id % TYPES.length], "Yamaha", "medium"));
+        }
+        out = new PrintStream(OutputStream.nullOutputStream());
+        writer = new InstrumentWriter(out);
+    }
+
+    @Benchmark
+    public void writeFormatted() {
+        writer.begin(InstrumentWriter.formatNamed(format));
+        for (Instrument instrument : instruments) {
+            writer.write(instrument);
+        }
+        writer.end();
+    }
+
+    @Benchmark
+    public void printToString() {
+        for (Instrument instrument : instruments) {
+            out.println(instrument);
+        }
+    }
+}
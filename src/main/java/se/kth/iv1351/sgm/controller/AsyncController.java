@@ -0,0 +1,148 @@
+package se.kth.iv1351.sgm.controller;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.kth.iv1351.sgm.model.InstrumentDTO;
+
+/**
+ * Performs controller operations on a thread pool of its own, so that a caller can
+ * start several operations without waiting for each, and combine their results. Each
+ * operation runs on one pool thread from start to end, which is where its database
+ * transaction belongs, and borrows a connection from the controller's connection pool
+ * only while it runs. The pool has <code>sgm.async.threads</code> threads, default 4,
+ * which should be fewer than <code>sgm.pool.size</code> so that the blocking callers of
+ * the controller always have connections left. At most <code>sgm.async.queueSize</code>
+ * operations, default 256, wait for a thread, further operations fail at once with a
+ * {@link RejectedExecutionException}.
+ *
+ * An operation that does not complete within its timeout, by default
+ * <code>sgm.async.timeoutSeconds</code>, fails with a {@link TimeoutException}. An
+ * operation that times out or is cancelled while it waits for a thread never runs, but
+ * one that is already running is only interrupted, and may still complete in the
+ * database. A rent that timed out may thus have created its lease.
+ */
+public class AsyncController implements AutoCloseable {
+    private final Controller ctrl;
+    private final ThreadPoolExecutor executor;
+    private final long defaultTimeoutMillis =
+            TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.async.timeoutSeconds", 30));
+
+    /**
+     * Creates a new instance that performs the operations of the specified controller.
+     */
+    public AsyncController(Controller ctrl) {
+        this.ctrl = ctrl;
+        int threads = Integer.getInteger("sgm.async.threads", 4);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger("sgm.async.queueSize", 256)), runnable -> {
+            Thread thread = new Thread(runnable, "async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Lists rentable_instruments of the specified type, a blank string for all types,
+     * see {@link Controller#getInstruments(String)}.
+     */
+    public CompletableFuture<List<? extends InstrumentDTO>> getInstrumentsAsync(String type) {
+        return getInstrumentsAsync(type, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<List<? extends InstrumentDTO>> getInstrumentsAsync(String type, long timeout,
+                                                                              TimeUnit unit) {
+        return submit(() -> ctrl.getInstruments(type), timeout, unit);
+    }
+
+    /**
+     * Creates a lease, see {@link Controller#createLease(int, int, String)}.
+     *
+     * @return Completes with the id of the created lease.
+     */
+    public CompletableFuture<Integer> createLeaseAsync(int studentId, int instrumentId, String endDay) {
+        return createLeaseAsync(studentId, instrumentId, endDay, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Integer> createLeaseAsync(int studentId, int instrumentId, String endDay,
+                                                       long timeout, TimeUnit unit) {
+        return submit(() -> ctrl.createLease(studentId, instrumentId, endDay), timeout, unit);
+    }
+
+    /**
+     * Terminates a lease, see {@link Controller#terminateLease(int)}.
+     */
+    public CompletableFuture<Void> terminateLeaseAsync(int leaseId) {
+        return terminateLeaseAsync(leaseId, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Void> terminateLeaseAsync(int leaseId, long timeout, TimeUnit unit) {
+        return submit(() -> {
+            ctrl.terminateLease(leaseId);
+            return null;
+        }, timeout, unit);
+    }
+
+    /**
+     * Stops the pool threads. Operations that have not started are cancelled, and
+     * running operations are interrupted. The controller is not closed.
+     */
+    @Override
+    public void close() {
+        for (Runnable notStarted : executor.shutdownNow()) {
+            ((Operation<?>) notStarted).result.cancel(false);
+        }
+    }
+
+    /**
+     * @return A future that is completed by the operation on a pool thread, unless it is
+     * cancelled or times out first, which also cancels the operation.
+     */
+    private <T> CompletableFuture<T> submit(Callable<T> call, long timeout, TimeUnit unit) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Operation<T> operation = new Operation<>(call, result);
+        try {
+            executor.execute(operation);
+        } catch (RejectedExecutionException busy) {
+            result.completeExceptionally(busy);
+            return result;
+        }
+        result.orTimeout(timeout, unit).whenComplete((value, failure) -> {
+            if (!operation.isDone() && (result.isCancelled() || failure instanceof TimeoutException)) {
+                operation.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * A call waiting for or running on a pool thread, which completes the future of its result.
+     */
+    private static class Operation<T> extends FutureTask<Void> {
+        private final CompletableFuture<T> result;
+
+        Operation(Callable<T> call, CompletableFuture<T> result) {
+            super(() -> {
+                // Cancelled or timed out while waiting for a thread
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.complete(call.call());
+                } catch (Throwable failure) {
+                    result.completeExceptionally(failure);
+                }
+            }, null);
+            this.result = result;
+        }
+    }
+}
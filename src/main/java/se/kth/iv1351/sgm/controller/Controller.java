@@ -25,15 +25,40 @@ package se.kth.iv1351.sgm.controller;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+import se.kth.iv1351.sgm.integration.InMemorySchoolDAO;
+import se.kth.iv1351.sgm.integration.JdbcSchoolDAO;
+import se.kth.iv1351.sgm.integration.LeaseChangeListener;
+import se.kth.iv1351.sgm.integration.MeteringProxies;
 import se.kth.iv1351.sgm.integration.SchoolDAO;
 import se.kth.iv1351.sgm.integration.SchoolDBException;
+import se.kth.iv1351.sgm.model.Instrument;
+import se.kth.iv1351.sgm.model.InstrumentAvailabilityIndex;
 import se.kth.iv1351.sgm.model.InstrumentDTO;
+import se.kth.iv1351.sgm.model.InstrumentSearch;
 import se.kth.iv1351.sgm.model.InstrumentStockException;
+import se.kth.iv1351.sgm.model.Lease;
+import se.kth.iv1351.sgm.model.LeaseCountCache;
+import se.kth.iv1351.sgm.model.LeaseDTO;
+import se.kth.iv1351.sgm.model.LeaseRequest;
 import se.kth.iv1351.sgm.model.RentalException;
+import se.kth.iv1351.sgm.model.StudentIdSet;
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
 
 /**
  * This is the application's only controller, all calls to the model pass here.
@@ -42,15 +67,109 @@ import se.kth.iv1351.sgm.model.RentalException;
  * the data, and finally tells the DAO to store the updated data (if any).
  */
 public class Controller {
+    private static final int LIST_CHUNK_SIZE = 256;
+    private static final String LEASE_LIMIT_MESSAGE =
+            "Student cannot have more than " + SchoolDAO.MAX_LEASES_PER_STUDENT + " rentals simultaneously.";
+    private static final int MAX_BACKOFF_DOUBLINGS = 10;
+    private static final Histogram RENT_ATTEMPTS = Metrics.counts("rent.attempts");
+    private static final Histogram RENT_RETRIES_EXHAUSTED = Metrics.counts("rent.retriesExhausted");
     private final SchoolDAO schoolDb;
+    // null if instruments are listed straight from the database
+    private final InstrumentAvailabilityIndex availabilityIndex;
+    private final long availabilityIndexMaxAgeMillis;
+    private final ReentrantLock availabilityIndexReloadLock = new ReentrantLock();
+    // null if student ids are only validated by the database
+    private final StudentIdSet knownStudents;
+    private final long knownStudentsMaxAgeMillis;
+    private final long knownStudentsMinReloadIntervalMillis;
+    private final ReentrantLock knownStudentsReloadLock = new ReentrantLock();
+    // null if every rent counts the leases of the student in the database
+    private final LeaseCountCache leaseCounts;
+    private final int batchChunkSize = Integer.getInteger("sgm.batch.chunkSize", 500);
+    private final int searchMaxRows = Integer.getInteger("sgm.search.maxRows", 100);
+    // Null if each termination commits on its own
+    private final LeaseTerminationBatcher terminationBatcher;
+    private final RentMode rentMode;
+    private final int maxRentAttempts = Integer.getInteger("sgm.rent.maxAttempts", 5);
+    private final long rentRetryBackoffMillis = Integer.getInteger("sgm.rent.retryBackoffMillis", 5);
+    private final ScheduledExecutorService leaseSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lease-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * Creates a new instance, and retrieves a connection to the database.
+     * Creates a new instance, and retrieves a connection to the database. If the system
+     * property <code>sgm.dao</code> is <code>memory</code>, data is instead kept in memory,
+     * starting with <code>sgm.memory.students</code> generated students and
+     * <code>sgm.memory.instruments</code> generated instruments.
      *
      * @throws SchoolDBException If unable to connect to the database.
      */
     public Controller() throws SchoolDBException {
-        schoolDb = new SchoolDAO();
+        this(createSchoolDAO());
+    }
+
+    /**
+     * Creates a new instance using the specified DAO. Unless the system property
+     * <code>sgm.index.enabled</code> is <code>false</code>, the rentable instruments are
+     * loaded into memory, and reloaded when they are older than
+     * <code>sgm.index.maxAgeSeconds</code>. Unless <code>sgm.students.filter.enabled</code>
+     * is <code>false</code>, the student ids are also loaded into memory, to reject
+     * leases for unknown students, see {@link #isUnknownStudent(int)}. Unless
+     * <code>sgm.leaseCounts.enabled</code> is <code>false</code>, students known to have
+     * the greatest allowed number of leases are rejected without asking the database,
+     * see {@link LeaseCountCache}. Unless <code>sgm.activeLeases.enabled</code> is
+     * <code>false</code>, the DAO keeps a separate store of the leases that have not
+     * ended, which is swept once a day, after midnight. The indexes the queries need are
+     * created, unless <code>sgm.schema.createIndexes</code> is <code>false</code>, and a
+     * warning is printed for each index that is missing. Leases are created as defined by
+     * <code>sgm.rent.mode</code>, see {@link RentMode}. Unless
+     * <code>sgm.terminate.groupCommit.enabled</code> is <code>false</code>, concurrent
+     * terminations are committed together, see {@link LeaseTerminationBatcher}. Unless
+     * <code>sgm.leaseChanges.enabled</code> is <code>false</code>, the leases that other
+     * processes create or terminate are applied to the data kept in memory as the DAO
+     * reports them, see {@link SchoolDAO#listenForLeaseChanges}.
+     *
+     * @param schoolDb The DAO used for all data access.
+     * @throws SchoolDBException If unable to read from the DAO.
+     */
+    public Controller(SchoolDAO schoolDb) throws SchoolDBException {
+        this.schoolDb = schoolDb;
+        if (Boolean.parseBoolean(System.getProperty("sgm.activeLeases.enabled", "true"))) {
+            installActiveLeaseTable();
+        }
+        checkIndexes(Boolean.parseBoolean(System.getProperty("sgm.schema.createIndexes", "true")));
+        rentMode = selectRentMode(RentMode.valueOf(System.getProperty("sgm.rent.mode", "function").toUpperCase()));
+        availabilityIndexMaxAgeMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.index.maxAgeSeconds", 30));
+        if (Boolean.parseBoolean(System.getProperty("sgm.index.enabled", "true"))) {
+            availabilityIndex = new InstrumentAvailabilityIndex();
+            reloadAvailabilityIndex();
+        } else {
+            availabilityIndex = null;
+        }
+        knownStudentsMaxAgeMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.students.maxAgeSeconds", 300));
+        knownStudentsMinReloadIntervalMillis =
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.students.reloadMinIntervalSeconds", 10));
+        knownStudents = Boolean.parseBoolean(System.getProperty("sgm.students.filter.enabled", "true"))
+                ? loadKnownStudents() : null;
+        if (Boolean.parseBoolean(System.getProperty("sgm.leaseCounts.enabled", "true"))) {
+            leaseCounts = new LeaseCountCache(Integer.getInteger("sgm.leaseCounts.maxSize", 10000),
+                    SchoolDAO.MAX_LEASES_PER_STUDENT,
+                    TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.leaseCounts.maxAgeSeconds", 30)));
+        } else {
+            leaseCounts = null;
+        }
+        if (Boolean.parseBoolean(System.getProperty("sgm.terminate.groupCommit.enabled", "true"))) {
+            terminationBatcher = new LeaseTerminationBatcher(schoolDb,
+                    Integer.getInteger("sgm.terminate.maxBatchSize", 100),
+                    Integer.getInteger("sgm.terminate.windowMillis", 0));
+        } else {
+            terminationBatcher = null;
+        }
+        if (Boolean.parseBoolean(System.getProperty("sgm.leaseChanges.enabled", "true"))) {
+            listenForLeaseChanges();
+        }
     }
 
 
@@ -59,46 +178,106 @@ public class Controller {
      **/
     public List<? extends InstrumentDTO> getInstruments(String type) throws InstrumentStockException {
         try {
-            return schoolDb.readRentableInstruments(type);
+            if (availabilityIndex == null) {
+                return schoolDb.readRentableInstruments(type);
+            }
+            return currentAvailabilityIndex().findRentableInstruments(type);
         } catch (Exception e) {
             throw new InstrumentStockException("Unable to list instruments.", e);
         }
     }
 
     /**
-     * Adds lease
+     * Lists rentable_instruments in id order without collecting them all first. Each
+     * instrument is handed to the consumer as soon as it has been read, and at most a
+     * few hundred instruments are held in memory at a time.
+     *
+     * @param afterId Only instruments with a higher id are listed, zero to start from the first.
+     * @param limit   The maximum number of instruments to list.
+     * @return the number of instruments handed to the consumer
      **/
-    public void createLease(int studentId, int instrumentId, String endDay) throws RentalException, ParseException {
-        String failureMsg = "Unable to rent.";
+    public int forEachInstrument(String type, int afterId, int limit, Consumer<? super InstrumentDTO> consumer)
+            throws InstrumentStockException {
         try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-            Date parsedDate = sdf.parse(endDay);
+            if (availabilityIndex == null) {
+                return schoolDb.readRentableInstruments(type, afterId, limit, consumer);
+            }
+            InstrumentAvailabilityIndex index = currentAvailabilityIndex();
+            int count = 0;
+            int lastId = afterId;
+            while (count < limit) {
+                List<Instrument> chunk = index.findRentableInstruments(type, lastId,
+                        Math.min(LIST_CHUNK_SIZE, limit - count));
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                chunk.forEach(consumer);
+                count += chunk.size();
+                lastId = chunk.get(chunk.size() - 1).getId();
+            }
+            return count;
+        } catch (Exception e) {
+            throw new InstrumentStockException("Unable to list instruments.", e);
+        }
+    }
 
-            // Check valid end_day
-            Calendar cal = Calendar.getInstance();
-            Date currentDate = cal.getTime();
-            cal.add(Calendar.YEAR, 1);
-            Date currentTimePlusOneYear = cal.getTime();
+    /**
+     * Searches rentable_instruments in the database, one page at a time. The search
+     * is always answered by the database, which has indexes for the conditions, and
+     * reads at most <code>sgm.search.maxRows</code> instruments per call whatever
+     * limit is asked for.
+     *
+     * @param limit The maximum number of instruments to find.
+     * @return the number of instruments handed to the consumer
+     **/
+    public int searchInstruments(InstrumentSearch search, int limit, Consumer<? super InstrumentDTO> consumer)
+            throws InstrumentStockException {
+        try {
+            return schoolDb.searchRentableInstruments(search, Math.min(limit, searchMaxRows), consumer);
+        } catch (Exception e) {
+            throw new InstrumentStockException("Unable to search instruments.", e);
+        }
+    }
 
-            if (parsedDate.after(currentTimePlusOneYear) || parsedDate.before(currentDate)) {
-                throw new RentalException("The end rent date cannot be today or after more than 12 months.");
-            }
+    /**
+     * @return The greatest number of instruments that one search finds.
+     */
+    public int getSearchMaxRows() {
+        return searchMaxRows;
+    }
 
-            // Check valid lease count of student
-            int countResult = schoolDb.readStudentLeaseCount(studentId);
-            if (countResult >= 2) {
-                throw new RentalException("Student cannot have more than 2 rentals simultaneously.");
+    /**
+     * Adds lease
+     *
+     * @return the id of the created lease
+     **/
+    public int createLease(int studentId, int instrumentId, String endDay) throws RentalException, ParseException {
+        String failureMsg = "Unable to rent.";
+        try {
+            Date parsedDate = parseEndDay(endDay);
+            if (isUnknownStudent(studentId)) {
+                throw new RentalException("Student " + studentId + " does not exist.");
             }
-
-            // Check valid instrument
-            boolean canRentInstrument = schoolDb.readCanRentInstrument(instrumentId);
-            if (!canRentInstrument) {
-                throw new RentalException("Instrument cannot be rented");
+            if (leaseCounts != null && leaseCounts.isAtLimit(studentId)) {
+                throw new RentalException(LEASE_LIMIT_MESSAGE);
             }
 
-            // student_id validated by FK constraint
-            int leaseId = schoolDb.createLease(studentId, instrumentId, endDay);
-            System.out.println("Created lease_id " + leaseId);
+            int leaseId;
+            if (rentMode == RentMode.FUNCTION) {
+                leaseId = createLeaseInOneCall(studentId, instrumentId, endDay);
+            } else if (rentMode == RentMode.SERIALIZABLE) {
+                leaseId = createLeaseSerializable(studentId, instrumentId, endDay);
+            } else {
+                leaseId = createLeaseWithStatements(studentId, instrumentId, endDay, true);
+            }
+            if (availabilityIndex != null) {
+                availabilityIndex.leaseCreated(new Lease(leaseId, studentId, instrumentId, LocalDate.now(),
+                        toLocalDate(parsedDate)));
+            }
+            if (leaseCounts != null) {
+                leaseCounts.leaseCreated(studentId, toLocalDate(parsedDate));
+            }
+            return leaseId;
         } catch (SchoolDBException sdbe) {
             throw new RentalException(failureMsg, sdbe);
         } catch (Exception e) {
@@ -108,19 +287,532 @@ public class Controller {
     }
 
     /**
-     * Terminates lease
+     * Closes all connections to the database.
+     */
+    public void close() {
+        leaseSweeper.shutdownNow();
+        if (terminationBatcher != null) {
+            terminationBatcher.close();
+        }
+        schoolDb.close();
+    }
+
+    /**
+     * @param countLocked true if the lease count is read with the student's leases locked
+     *                    until the transaction ends, so that it can be remembered. A
+     *                    termination of one of them then commits after this transaction,
+     *                    and forgets the count after it was remembered. Counts that are
+     *                    read without locking, or after the transaction ended, could be
+     *                    remembered after such a termination, and are therefore not.
+     */
+    private int createLeaseWithStatements(int studentId, int instrumentId, String endDay, boolean countLocked)
+            throws RentalException, SchoolDBException {
+        // Check valid lease count of student
+        int countResult = schoolDb.readStudentLeaseCount(studentId);
+        if (leaseCounts != null && countLocked) {
+            leaseCounts.countRead(studentId, countResult);
+        }
+        if (countResult >= SchoolDAO.MAX_LEASES_PER_STUDENT) {
+            throw new RentalException(LEASE_LIMIT_MESSAGE);
+        }
+
+        // Check valid instrument
+        boolean canRentInstrument = schoolDb.readCanRentInstrument(instrumentId);
+        if (!canRentInstrument) {
+            throw new RentalException("Instrument cannot be rented");
+        }
+
+        // student_id validated by FK constraint
+        return schoolDb.createLease(studentId, instrumentId, endDay);
+    }
+
+    private int createLeaseInOneCall(int studentId, int instrumentId, String endDay)
+            throws RentalException, SchoolDBException {
+        // student_id validated by FK constraint
+        int result = schoolDb.createLeaseIfAllowed(studentId, instrumentId, endDay);
+        switch (result) {
+            case SchoolDAO.LEASE_LIMIT_REACHED:
+                throw new RentalException(LEASE_LIMIT_MESSAGE);
+            case SchoolDAO.INSTRUMENT_NOT_RENTABLE:
+                throw new RentalException("Instrument cannot be rented");
+            default:
+                return result;
+        }
+    }
+
+    /**
+     * Checks the rules and creates the lease in a serializable transaction. If the
+     * transaction conflicts with a concurrent transaction it is retried, at most
+     * <code>sgm.rent.maxAttempts</code> times in total, after a random delay of up to
+     * <code>sgm.rent.retryBackoffMillis</code>, doubled for each retry.
+     */
+    private int createLeaseSerializable(int studentId, int instrumentId, String endDay)
+            throws RentalException, SchoolDBException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                schoolDb.beginSerializableTransaction();
+                int leaseId;
+                try {
+                    leaseId = createLeaseWithStatements(studentId, instrumentId, endDay, false);
+                } catch (RentalException rejected) {
+                    // The rules were only broken if the reads showing it can be committed
+                    schoolDb.commit();
+                    RENT_ATTEMPTS.record(attempt);
+                    throw rejected;
+                }
+                RENT_ATTEMPTS.record(attempt);
+                return leaseId;
+            } catch (SchoolDBException sdbe) {
+                if (!sdbe.isRetryable() || attempt >= maxRentAttempts) {
+                    RENT_ATTEMPTS.record(attempt);
+                    if (sdbe.isRetryable()) {
+                        RENT_RETRIES_EXHAUSTED.record(attempt);
+                    }
+                    throw sdbe;
+                }
+                backOff(attempt, sdbe);
+            }
+        }
+    }
+
+    private void backOff(int attempt, SchoolDBException failure) throws SchoolDBException {
+        long maxDelayMillis = rentRetryBackoffMillis << Math.min(attempt - 1, MAX_BACKOFF_DOUBLINGS);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelayMillis + 1));
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    /**
+     * Adds leases in bulk. The requests are processed in chunks of
+     * <code>sgm.batch.chunkSize</code> requests, each chunk in one transaction.
+     * Every request is either accepted or rejected, a request that breaks a rule only
+     * rejects itself. A chunk whose transaction conflicts with a concurrent transaction,
+     * for example by deadlocking with a termination, is retried like a serializable
+     * rent, see <code>sgm.rent.maxAttempts</code>, while a failing database call that
+     * can not be retried rejects the rest of its chunk.
+     **/
+    public void createLeases(List<LeaseRequest> requests) {
+        for (int chunkStart = 0; chunkStart < requests.size(); chunkStart += batchChunkSize) {
+            List<LeaseRequest> chunk = requests.subList(chunkStart, Math.min(chunkStart + batchChunkSize, requests.size()));
+            Date[] endDays = new Date[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                try {
+                    endDays[i] = parseEndDay(chunk.get(i).getEndDay());
+                } catch (RentalException | ParseException e) {
+                    chunk.get(i).reject(e.getMessage());
+                }
+            }
+
+            // Rejected before the DAO call, the outcomes of the DAO are discarded if it fails
+            boolean[] rejectedBeforeDb = new boolean[chunk.size()];
+            try {
+                for (int i = 0; i < chunk.size(); i++) {
+                    LeaseRequest request = chunk.get(i);
+                    if (!request.isRejected() && isUnknownStudent(request.getStudentId())) {
+                        request.reject("Student " + request.getStudentId() + " does not exist.");
+                    } else if (!request.isRejected() && leaseCounts != null
+                            && leaseCounts.isAtLimit(request.getStudentId())) {
+                        request.reject(LEASE_LIMIT_MESSAGE);
+                    }
+                    rejectedBeforeDb[i] = request.isRejected();
+                }
+                createLeasesRetrying(chunk, rejectedBeforeDb);
+            } catch (SchoolDBException sdbe) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!rejectedBeforeDb[i]) {
+                        chunk.get(i).reject("Unable to rent. " + sdbe.getMessage());
+                    }
+                }
+                continue;
+            }
+
+            for (int i = 0; i < chunk.size(); i++) {
+                LeaseRequest request = chunk.get(i);
+                if (request.isRejected()) {
+                    continue;
+                }
+                if (availabilityIndex != null) {
+                    availabilityIndex.leaseCreated(new Lease(request.getLeaseId(), request.getStudentId(),
+                            request.getInstrumentId(), LocalDate.now(), toLocalDate(endDays[i])));
+                }
+                if (leaseCounts != null) {
+                    leaseCounts.leaseCreated(request.getStudentId(), toLocalDate(endDays[i]));
+                }
+            }
+        }
+    }
+
+    private void createLeasesRetrying(List<LeaseRequest> chunk, boolean[] rejectedBeforeDb)
+            throws SchoolDBException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                schoolDb.createLeases(chunk);
+                return;
+            } catch (SchoolDBException sdbe) {
+                if (!sdbe.isRetryable() || attempt >= maxRentAttempts) {
+                    throw sdbe;
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (!rejectedBeforeDb[i]) {
+                        chunk.get(i).reset();
+                    }
+                }
+                backOff(attempt, sdbe);
+            }
+        }
+    }
+
+    /**
+     * Terminates lease, together with the leases that other threads terminate at the
+     * same time unless group commit is turned off.
      **/
     public void terminateLease(int leaseId) throws RentalException {
         try {
-            int updatedRows = schoolDb.updateLeaseEndDate(leaseId);
-            if (updatedRows == 0) throw new RentalException("The specified lease does not exist.");
-
-            System.out.println("Terminated lease_id " + leaseId);
+            Lease terminatedLease = terminationBatcher != null
+                    ? terminationBatcher.terminate(leaseId) : schoolDb.updateLeaseEndDate(leaseId);
+            if (terminatedLease == null) throw new RentalException("The specified lease does not exist.");
+            leasesTerminated(List.of(terminatedLease));
         } catch (Exception e) {
             throw new RentalException("Unable to terminate lease.", e);
         }
     }
 
+    /**
+     * Terminates the leases with the specified ids with one statement, bypassing group
+     * commit since they are already a batch.
+     *
+     * @return the terminated leases, ids without a lease are left out
+     **/
+    public List<? extends LeaseDTO> terminateLeases(int[] leaseIds) throws RentalException {
+        try {
+            return leasesTerminated(schoolDb.updateLeaseEndDates(leaseIds));
+        } catch (Exception e) {
+            throw new RentalException("Unable to terminate leases.", e);
+        }
+    }
+
+    /**
+     * Terminates all leases of the student that have not ended, with one statement.
+     *
+     * @return the terminated leases
+     **/
+    public List<? extends LeaseDTO> terminateStudentLeases(int studentId) throws RentalException {
+        try {
+            return leasesTerminated(schoolDb.updateLeaseEndDatesOfStudent(studentId));
+        } catch (Exception e) {
+            throw new RentalException("Unable to terminate the leases of student " + studentId + ".", e);
+        }
+    }
+
+    /**
+     * Terminates all leases of instruments of the specified type that have not ended,
+     * with one statement.
+     *
+     * @return the terminated leases
+     **/
+    public List<? extends LeaseDTO> terminateTypeLeases(String type) throws RentalException {
+        try {
+            return leasesTerminated(schoolDb.updateLeaseEndDatesOfType(type));
+        } catch (Exception e) {
+            throw new RentalException("Unable to terminate the leases of " + type + ".", e);
+        }
+    }
+
+    private List<Lease> leasesTerminated(List<Lease> terminatedLeases) {
+        for (Lease terminatedLease : terminatedLeases) {
+            if (availabilityIndex != null) {
+                availabilityIndex.leaseTerminated(terminatedLease);
+            }
+            if (leaseCounts != null) {
+                leaseCounts.leaseTerminated(terminatedLease.getStudentId());
+            }
+        }
+        return terminatedLeases;
+    }
+
+    /**
+     * Lists the leases that are active today, read from the database rather than from
+     * the availability index.
+     **/
+    public List<? extends LeaseDTO> getActiveLeases() throws RentalException {
+        try {
+            LocalDate today = LocalDate.now();
+            List<Lease> activeLeases = new ArrayList<>();
+            for (Lease lease : schoolDb.readUnendedLeases()) {
+                if (lease.isActiveOn(today)) {
+                    activeLeases.add(lease);
+                }
+            }
+            return activeLeases;
+        } catch (SchoolDBException sdbe) {
+            throw new RentalException("Unable to list leases.", sdbe);
+        }
+    }
+
+    /**
+     * Executes the statements that list instruments with their plans explained.
+     *
+     * @param limit The greatest number of instruments to list.
+     * @return Each statement followed by its plan, one line per element.
+     **/
+    public List<String> explainList(String type, int limit) throws InstrumentStockException {
+        try {
+            List<String> plans = new ArrayList<>();
+            if (availabilityIndex != null) {
+                plans.add("Instruments are listed from memory, the database is only queried with " +
+                        "sgm.index.enabled=false:");
+            }
+            plans.addAll(schoolDb.explainListing(type, limit));
+            return plans;
+        } catch (SchoolDBException sdbe) {
+            throw new InstrumentStockException("Unable to explain list.", sdbe);
+        }
+    }
+
+    /**
+     * Executes the statements that rent an instrument in the current rent mode with their
+     * plans explained, without creating the lease.
+     *
+     * @return Each statement followed by its plan, one line per element.
+     **/
+    public List<String> explainRent(int studentId, int instrumentId, String endDay) throws RentalException {
+        try {
+            if (rentMode == RentMode.SERIALIZABLE) {
+                // Like a serializable rent, which reads without locking
+                schoolDb.beginSerializableTransaction();
+            }
+            return schoolDb.explainRent(studentId, instrumentId, endDay, rentMode == RentMode.FUNCTION);
+        } catch (SchoolDBException sdbe) {
+            throw new RentalException("Unable to explain rent.", sdbe);
+        }
+    }
+
+    /**
+     * Executes the statement that terminates a lease with its plan explained, without
+     * terminating the lease.
+     *
+     * @return The statement followed by its plan, one line per element.
+     **/
+    public List<String> explainTerminate(int leaseId) throws RentalException {
+        try {
+            return schoolDb.explainTermination(leaseId);
+        } catch (SchoolDBException sdbe) {
+            throw new RentalException("Unable to explain terminate.", sdbe);
+        }
+    }
+
+    /**
+     * Parses and validates the end day of a new lease
+     **/
+    private Date parseEndDay(String endDay) throws RentalException, ParseException {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+        Date parsedDate = sdf.parse(endDay);
+
+        // Check valid end_day
+        Calendar cal = Calendar.getInstance();
+        Date currentDate = cal.getTime();
+        cal.add(Calendar.YEAR, 1);
+        Date currentTimePlusOneYear = cal.getTime();
+
+        if (parsedDate.after(currentTimePlusOneYear) || parsedDate.before(currentDate)) {
+            throw new RentalException("The end rent date cannot be today or after more than 12 months.");
+        }
+        return parsedDate;
+    }
+
+    private LocalDate toLocalDate(Date date) {
+        return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    private static SchoolDAO createSchoolDAO() throws SchoolDBException {
+        SchoolDAO schoolDb;
+        if (System.getProperty("sgm.dao", "jdbc").equalsIgnoreCase("memory")) {
+            schoolDb = InMemorySchoolDAO.withGeneratedData(Integer.getInteger("sgm.memory.students", 1000),
+                    Integer.getInteger("sgm.memory.instruments", 1000), 1);
+        } else {
+            schoolDb = new JdbcSchoolDAO();
+        }
+        return Metrics.isEnabled() ? MeteringProxies.metered(schoolDb) : schoolDb;
+    }
+
+    /**
+     * Installs the store of leases that have not ended, and schedules the daily sweep
+     * of ended leases. Falls back to reading the lease history if that fails, for
+     * example because the database user may not create tables.
+     */
+    private void installActiveLeaseTable() {
+        try {
+            schoolDb.installActiveLeaseTable();
+        } catch (SchoolDBException sdbe) {
+            System.out.println(sdbe.getMessage() + " Reading current leases from the lease history instead.");
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long untilMidnightMillis = Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay()).toMillis();
+        leaseSweeper.scheduleAtFixedRate(this::retireEndedLeases, untilMidnightMillis, TimeUnit.DAYS.toMillis(1),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the availability index and the lease counts up to date with the leases that
+     * other processes change, instead of only noticing them when the data gets too old.
+     * If the changes can not be listened for, startup continues without them.
+     */
+    private void listenForLeaseChanges() {
+        try {
+            schoolDb.listenForLeaseChanges(new LeaseChangeListener() {
+                @Override
+                public void leaseCreated(Lease lease) {
+                    // The lease counts are lower bounds, which another lease does not make wrong
+                    if (availabilityIndex != null) {
+                        availabilityIndex.leaseCreated(lease);
+                    }
+                }
+
+                @Override
+                public void leaseTerminated(Lease lease) {
+                    leasesTerminated(List.of(lease));
+                }
+
+                @Override
+                public void changesMissed() {
+                    if (availabilityIndex != null) {
+                        availabilityIndex.markStale();
+                    }
+                    if (leaseCounts != null) {
+                        leaseCounts.clear();
+                    }
+                }
+            });
+        } catch (SchoolDBException sdbe) {
+            System.out.println(sdbe.getMessage() + " Changes made by others are noticed when cached data gets too old.");
+        }
+    }
+
+    /**
+     * Creates the indexes the queries need, if allowed to, and warns about every index
+     * that is missing. Missing indexes only make queries slower, so startup continues.
+     */
+    private void checkIndexes(boolean create) {
+        try {
+            for (String missingIndex : schoolDb.installIndexes(create)) {
+                System.out.println("Warning, missing index: " + missingIndex);
+            }
+        } catch (SchoolDBException sdbe) {
+            System.out.println(sdbe.getMessage() + " Continuing without knowing which indexes exist.");
+        }
+    }
+
+    private void retireEndedLeases() {
+        try {
+            schoolDb.retireEndedLeases();
+        } catch (SchoolDBException sdbe) {
+            // The leases are retired at the next sweep, until then they are only skipped by the queries
+            System.err.println(sdbe.getMessage());
+        }
+    }
+
+    /**
+     * Installs what the specified rent mode needs in the database, and falls back to
+     * separate statements if that fails, for example because the database user may
+     * not create functions.
+     */
+    private RentMode selectRentMode(RentMode requestedMode) {
+        if (requestedMode == RentMode.FUNCTION) {
+            try {
+                schoolDb.installCreateLeaseFunction();
+            } catch (SchoolDBException sdbe) {
+                System.out.println(sdbe.getMessage() + " Renting with separate statements instead.");
+                return RentMode.STATEMENTS;
+            }
+        }
+        return requestedMode;
+    }
+
+    private InstrumentAvailabilityIndex currentAvailabilityIndex() throws SchoolDBException {
+        if (availabilityIndex.isOlderThan(availabilityIndexMaxAgeMillis)) {
+            reloadAvailabilityIndex();
+        }
+        return availabilityIndex;
+    }
+
+    /**
+     * Reloads the availability index, unless another thread is already reloading it,
+     * in which case the current content is used meanwhile.
+     */
+    private void reloadAvailabilityIndex() throws SchoolDBException {
+        if (!availabilityIndexReloadLock.tryLock()) {
+            return;
+        }
+        try {
+            // Leases changed while the database is read are applied again after loading
+            availabilityIndex.startRecordingChanges();
+            availabilityIndex.load(schoolDb.readAllInstruments(), schoolDb.readUnendedLeases());
+        } finally {
+            availabilityIndex.stopRecordingChanges();
+            availabilityIndexReloadLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the student ids, or returns null if they can not be read, in which case
+     * student ids are only validated by the database.
+     */
+    private StudentIdSet loadKnownStudents() {
+        StudentIdSet studentIds = new StudentIdSet();
+        try {
+            studentIds.load(schoolDb.readStudentIds());
+            return studentIds;
+        } catch (SchoolDBException sdbe) {
+            System.out.println(sdbe.getMessage() + " Student ids are checked by the database instead.");
+            return null;
+        }
+    }
+
+    /**
+     * Checks a student id against the student ids in memory, which are reloaded when
+     * they are older than <code>sgm.students.maxAgeSeconds</code>. An id that is not
+     * found may belong to a student added since the ids were loaded, so the ids are
+     * then reloaded before the student is considered unknown, unless they were loaded
+     * less than <code>sgm.students.reloadMinIntervalSeconds</code> ago. That way, a
+     * stream of unknown ids causes at most one reload per interval.
+     *
+     * @return true if there is certainly no student with the specified id.
+     */
+    private boolean isUnknownStudent(int studentId) throws SchoolDBException {
+        if (knownStudents == null) {
+            return false;
+        }
+        if (knownStudents.isOlderThan(knownStudentsMaxAgeMillis)) {
+            reloadKnownStudents();
+        }
+        if (knownStudents.contains(studentId)) {
+            return false;
+        }
+        if (knownStudents.isOlderThan(knownStudentsMinReloadIntervalMillis)) {
+            reloadKnownStudents();
+        }
+        return !knownStudents.contains(studentId);
+    }
+
+    /**
+     * Reloads the student ids, unless another thread is already reloading them, in
+     * which case the current ids are used meanwhile.
+     */
+    private void reloadKnownStudents() throws SchoolDBException {
+        if (!knownStudentsReloadLock.tryLock()) {
+            return;
+        }
+        try {
+            knownStudents.load(schoolDb.readStudentIds());
+        } finally {
+            knownStudentsReloadLock.unlock();
+        }
+    }
+
     private void commitOngoingTransaction(String failureMsg) throws RentalException {
         try {
             schoolDb.commit();
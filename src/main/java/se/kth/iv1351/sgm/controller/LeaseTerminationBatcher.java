@@ -0,0 +1,153 @@
+package se.kth.iv1351.sgm.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import se.kth.iv1351.sgm.integration.SchoolDAO;
+import se.kth.iv1351.sgm.integration.SchoolDBException;
+import se.kth.iv1351.sgm.model.Lease;
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.IntObjectHashMap;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * Terminates leases of concurrent callers together, with one statement and one commit
+ * per batch, so that many terminations arriving at once do not each wait for a commit
+ * of their own. A thread of its own performs one batch at a time, and the terminations
+ * requested while a batch is performed make up the next batch, up to a maximum size.
+ * The thread may also wait a short window after the first termination of a batch, for
+ * more to arrive. Each caller waits until the batch with its termination has committed,
+ * and is told whether its own lease existed.
+ *
+ * A batch that fails because of a deadlock or serialization failure is retried. If it
+ * fails otherwise, all its terminations fail. The size of each batch is recorded in the
+ * histogram <code>terminate.batchSize</code>.
+ */
+class LeaseTerminationBatcher {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Histogram BATCH_SIZES = Metrics.counts("terminate.batchSize");
+    private final SchoolDAO schoolDb;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final BlockingQueue<Termination> pending = new LinkedBlockingQueue<>();
+    private final Thread terminator;
+    private volatile boolean closed;
+
+    /**
+     * @param maxBatchSize The greatest number of leases terminated in one transaction.
+     * @param windowMillis How long to wait for more terminations after the first of a batch.
+     */
+    LeaseTerminationBatcher(SchoolDAO schoolDb, int maxBatchSize, long windowMillis) {
+        this.schoolDb = schoolDb;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.terminator = new Thread(this::terminateBatches, "lease-terminator");
+        terminator.setDaemon(true);
+        terminator.start();
+    }
+
+    /**
+     * Terminates the lease in the next batch, and waits until that batch has committed.
+     *
+     * @return the terminated lease, or null if there is no lease with the specified id
+     */
+    Lease terminate(int leaseId) throws SchoolDBException {
+        Termination termination = new Termination(leaseId);
+        pending.add(termination);
+        if (closed && pending.remove(termination)) {
+            throw new SchoolDBException("No more leases are terminated, the application is closing.");
+        }
+        try {
+            return termination.result.get();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new SchoolDBException("Interrupted while waiting for the lease to be terminated.", interrupted);
+        } catch (ExecutionException failed) {
+            if (failed.getCause() instanceof SchoolDBException) {
+                throw (SchoolDBException) failed.getCause();
+            }
+            throw new SchoolDBException("Could not terminate rental.", failed.getCause());
+        }
+    }
+
+    /**
+     * Stops the thread after the ongoing batch, and fails the terminations that are
+     * not yet in a batch.
+     */
+    void close() {
+        closed = true;
+        terminator.interrupt();
+        try {
+            terminator.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        List<Termination> notStarted = new ArrayList<>();
+        pending.drainTo(notStarted);
+        SchoolDBException closing = new SchoolDBException("No more leases are terminated, the application is closing.");
+        notStarted.forEach(termination -> termination.result.completeExceptionally(closing));
+    }
+
+    private void terminateBatches() {
+        List<Termination> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                batch.add(pending.take());
+                long windowEnd = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    Termination next = pending.poll(Math.max(0, windowEnd - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException interrupted) {
+                // Closing, the terminations taken so far are still performed
+            }
+            if (!batch.isEmpty()) {
+                terminateBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void terminateBatch(List<Termination> batch) {
+        int[] leaseIds = new int[batch.size()];
+        for (int i = 0; i < leaseIds.length; i++) {
+            leaseIds[i] = batch.get(i).leaseId;
+        }
+        BATCH_SIZES.record(batch.size());
+        for (int attempt = 1; ; attempt++) {
+            try {
+                IntObjectHashMap<Lease> terminatedLeases = new IntObjectHashMap<>();
+                for (Lease lease : schoolDb.updateLeaseEndDates(leaseIds)) {
+                    terminatedLeases.put(lease.getId(), lease);
+                }
+                batch.forEach(termination -> termination.result.complete(terminatedLeases.get(termination.leaseId)));
+                return;
+            } catch (SchoolDBException failure) {
+                if (!failure.isRetryable() || attempt == MAX_ATTEMPTS) {
+                    batch.forEach(termination -> termination.result.completeExceptionally(failure));
+                    return;
+                }
+            } catch (RuntimeException failure) {
+                batch.forEach(termination -> termination.result.completeExceptionally(failure));
+                return;
+            }
+        }
+    }
+
+    private static class Termination {
+        private final int leaseId;
+        private final CompletableFuture<Lease> result = new CompletableFuture<>();
+
+        Termination(int leaseId) {
+            this.leaseId = leaseId;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package se.kth.iv1351.sgm.controller;
+
+/**
+ * Defines how the controller checks the rental rules and creates a lease. Chosen
+ * with the system property <code>sgm.rent.mode</code>.
+ */
+public enum RentMode {
+
+    // Lock the student's leases, check the rules and insert with one statement each
+    STATEMENTS,
+
+    // Lock, check and insert with one call to a database function
+    FUNCTION,
+
+    // Check and insert without locks in a serializable transaction, retried if it
+    // conflicts with a concurrent transaction
+    SERIALIZABLE
+}
@@ -0,0 +1,222 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * A bounded pool of database connections. A connection is borrowed for one
+ * transaction and returned when that transaction is committed or rolled back.
+ * Connections that have been idle for a while are validated before they are
+ * handed out, and connections idle for longer than the eviction limit are closed.
+ *
+ * The usage of a pool is recorded in histograms named after the pool, which
+ * <code>stats</code> shows and JMX exports, see {@link Metrics}: the time each borrow
+ * waited in <code>&lt;name&gt;.wait</code>, the share of the pool in use after each
+ * borrow in <code>&lt;name&gt;.inUsePercent</code>, the number of open connections
+ * whenever it changes in <code>&lt;name&gt;.open</code>, and the borrows that timed out,
+ * the connections that failed validation and the evicted connections in
+ * <code>&lt;name&gt;.timeouts</code>, <code>&lt;name&gt;.validationFailures</code> and
+ * <code>&lt;name&gt;.evictions</code>, which record the wait or idle time in milliseconds.
+ */
+class ConnectionPool {
+    private final String url;
+    private final Properties connectionProperties;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterMillis;
+    private final long maxIdleMillis;
+    private final int validationTimeoutSeconds;
+    private final boolean readOnly;
+    private final Semaphore permits;
+    // Most recently returned connections first, so that the oldest ones are the ones evicted.
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final Histogram waits;
+    private final Histogram inUsePercents;
+    private final Histogram openCounts;
+    private final Histogram timeouts;
+    private final Histogram validationFailures;
+    private final Histogram evictions;
+
+    /**
+     * Creates a new pool. No connections are opened until they are first borrowed.
+     *
+     * @param url                      The JDBC url of the database.
+     * @param connectionProperties     The user, password and driver settings of all connections.
+     * @param maxSize                  The maximum number of simultaneously open connections.
+     * @param borrowTimeoutMillis      How long a caller waits for a free connection before failing.
+     * @param validateAfterMillis      Idle time after which a connection is validated before use.
+     * @param maxIdleMillis            Idle time after which a connection is closed.
+     * @param validationTimeoutSeconds How long validation of a connection may take.
+     */
+    ConnectionPool(String url, Properties connectionProperties, int maxSize, long borrowTimeoutMillis,
+                   long validateAfterMillis, long maxIdleMillis, int validationTimeoutSeconds) {
+        this(url, connectionProperties, maxSize, borrowTimeoutMillis, validateAfterMillis, maxIdleMillis,
+                validationTimeoutSeconds, false, "pool");
+    }
+
+    /**
+     * Creates a new pool, whose connections are read only if so specified. The
+     * database then rejects any attempt to write through them.
+     *
+     * @param name The prefix of the names of the histograms of this pool.
+     */
+    ConnectionPool(String url, Properties connectionProperties, int maxSize, long borrowTimeoutMillis,
+                   long validateAfterMillis, long maxIdleMillis, int validationTimeoutSeconds, boolean readOnly,
+                   String name) {
+        this.url = url;
+        this.connectionProperties = connectionProperties;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterMillis = validateAfterMillis;
+        this.maxIdleMillis = maxIdleMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.readOnly = readOnly;
+        this.permits = new Semaphore(maxSize, true);
+        this.waits = Metrics.latency(name + ".wait");
+        this.inUsePercents = Metrics.counts(name + ".inUsePercent");
+        this.openCounts = Metrics.counts(name + ".open");
+        this.timeouts = Metrics.counts(name + ".timeouts");
+        this.validationFailures = Metrics.counts(name + ".validationFailures");
+        this.evictions = Metrics.counts(name + ".evictions");
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long evictionInterval = Math.max(1000, maxIdleMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections,
+                evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting if all connections are in use.
+     *
+     * @return A valid connection with auto commit turned off.
+     * @throws SQLException If the pool is closed, if no connection could be opened, or
+     *                      if no connection became free within the borrow timeout.
+     */
+    PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed.");
+        }
+        long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart));
+                throw new SQLException("Timed out waiting for a free database connection.");
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", interrupted);
+        }
+        waits.recordSince(waitStart);
+
+        try {
+            PooledConnection connection = takeValidIdleConnection();
+            if (connection == null) {
+                connection = open();
+            }
+            inUsePercents.record(inUse.incrementAndGet() * 100L / maxSize);
+            return connection;
+        } catch (SQLException | RuntimeException exception) {
+            permits.release();
+            throw exception;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. The connection is closed if the pool
+     * is closed.
+     *
+     * @param connection The returned connection.
+     * @param broken     <code>true</code> if the connection must not be reused, for
+     *                   example because a rollback on it failed.
+     */
+    void release(PooledConnection connection, boolean broken) {
+        inUse.decrementAndGet();
+        try {
+            if (broken || closed || connection.isClosed()) {
+                discard(connection);
+            } else {
+                connection.markIdle();
+                idle.offerFirst(connection);
+                // The pool may have been closed after the check, and emptied before the offer
+                if (closed && idle.remove(connection)) {
+                    discard(connection);
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops evicting. Connections that are in use
+     * are closed when they are returned, and no more connections are borrowed.
+     */
+    void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            discard(connection);
+        }
+    }
+
+    private PooledConnection takeValidIdleConnection() {
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (connection.idleMillis() < validateAfterMillis || connection.isValid(validationTimeoutSeconds)) {
+                return connection;
+            }
+            validationFailures.record(connection.idleMillis());
+            discard(connection);
+        }
+        return null;
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, connectionProperties);
+        if (Metrics.isEnabled()) {
+            connection = MeteringProxies.metered(connection);
+        }
+        connection.setAutoCommit(false);
+        connection.setReadOnly(readOnly);
+        openCounts.record(openConnections.incrementAndGet());
+        return new PooledConnection(connection, this);
+    }
+
+    private void discard(PooledConnection connection) {
+        openCounts.record(openConnections.decrementAndGet());
+        connection.closeQuietly();
+    }
+
+    private void evictIdleConnections() {
+        Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            PooledConnection connection = oldestFirst.next();
+            if (connection.idleMillis() > maxIdleMillis && idle.remove(connection)) {
+                evictions.record(connection.idleMillis());
+                discard(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import se.kth.iv1351.sgm.model.Instrument;
+import se.kth.iv1351.sgm.model.InstrumentDTO;
+import se.kth.iv1351.sgm.model.InstrumentSearch;
+import se.kth.iv1351.sgm.model.Lease;
+import se.kth.iv1351.sgm.model.LeaseRequest;
+import se.kth.iv1351.sgm.util.IntObjectHashMap;
+
+/**
+ * A data access object that keeps all students, instruments and leases in memory,
+ * following the same rules as the database: a lease is current from its start day
+ * up to but not including its end day, a student may have at most two current
+ * leases, and terminating a lease sets its end day to today.
+ *
+ * The data is split over a fixed number of stripes, each with its own lock and its
+ * own int keyed maps. Students and instruments are locked per stripe, always
+ * students before instruments before leases, so that operations on different
+ * students and instruments rarely wait for each other and never deadlock. Like the
+ * row locks of the database, the student lock taken by {@link #readStudentLeaseCount}
+ * is held by the calling thread until its transaction ends.
+ */
+public class InMemorySchoolDAO implements SchoolDAO {
+    private static final int STRIPES = 64;
+    private static final DateTimeFormatter END_DAY_FORMAT = DateTimeFormatter.ofPattern("uuuu-M-d");
+    private static final String[] TYPES = {"guitar", "piano", "drums", "violin", "cello", "flute", "trumpet", "saxophone"};
+    private static final String[] BRANDS = {"Yamaha", "Fender", "Gibson", "Roland", "Steinway", "Pearl"};
+    private static final String NO_PLANS_MSG = "There are no query plans, the data is kept in memory.";
+    private static final String[] QUALITIES = {"low", "medium", "high"};
+
+    private final StudentStripe[] studentStripes = new StudentStripe[STRIPES];
+    private final InstrumentStripe[] instrumentStripes = new InstrumentStripe[STRIPES];
+    private final LeaseStripe[] leaseStripes = new LeaseStripe[STRIPES];
+    private final AtomicInteger lastLeaseId = new AtomicInteger();
+    // Replaced, never modified, when an instrument is added
+    private volatile int[] sortedInstrumentIds = new int[0];
+    // The locks held by the calling thread's ongoing transaction
+    private final ThreadLocal<List<ReentrantLock>> transactionLocks = ThreadLocal.withInitial(ArrayList::new);
+
+    /**
+     * Creates an empty DAO, without students or instruments.
+     */
+    public InMemorySchoolDAO() {
+        for (int i = 0; i < STRIPES; i++) {
+            studentStripes[i] = new StudentStripe();
+            instrumentStripes[i] = new InstrumentStripe();
+            leaseStripes[i] = new LeaseStripe();
+        }
+    }
+
+    /**
+     * Creates a DAO filled with generated students and instruments, and no leases.
+     *
+     * @param studentCount    The students get ids from 1 to this count.
+     * @param instrumentCount The instruments get ids from 1 to this count.
+     * @param seed            The same seed always generates the same instruments.
+     */
+    public static InMemorySchoolDAO withGeneratedData(int studentCount, int instrumentCount, long seed) {
+        InMemorySchoolDAO schoolDb = new InMemorySchoolDAO();
+        Random random = new Random(seed);
+        for (int id = 1; id <= studentCount; id++) {
+            schoolDb.addStudent(id);
+        }
+        List<Instrument> instruments = new ArrayList<>(instrumentCount);
+        for (int id = 1; id <= instrumentCount; id++) {
+            instruments.add(new Instrument(id, 100 + random.nextInt(900), TYPES[random.nextInt(TYPES.length)],
+                    BRANDS[random.nextInt(BRANDS.length)], QUALITIES[random.nextInt(QUALITIES.length)]));
+        }
+        schoolDb.addInstruments(instruments);
+        return schoolDb;
+    }
+
+    /**
+     * Adds a student, who can then rent instruments.
+     */
+    public void addStudent(int studentId) {
+        StudentStripe stripe = studentStripe(studentId);
+        stripe.lock.lock();
+        try {
+            stripe.leasesByStudent.computeIfAbsent(studentId, id -> new ArrayList<>(MAX_LEASES_PER_STUDENT));
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds rentable instruments, or replaces instruments with the same ids.
+     */
+    public void addInstruments(List<? extends InstrumentDTO> instruments) {
+        for (InstrumentDTO instrument : instruments) {
+            InstrumentStripe stripe = instrumentStripe(instrument.getId());
+            stripe.lock.lock();
+            try {
+                stripe.instruments.put(instrument.getId(), new Instrument(instrument.getId(), instrument.getPrice(),
+                        instrument.getType(), instrument.getBrand(), instrument.getQuality()));
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        synchronized (this) {
+            TreeSet<Integer> ids = new TreeSet<>();
+            Arrays.stream(sortedInstrumentIds).forEach(ids::add);
+            instruments.forEach(instrument -> ids.add(instrument.getId()));
+            sortedInstrumentIds = ids.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    @Override
+    public List<Instrument> readRentableInstruments(String type) {
+        List<Instrument> instruments = new ArrayList<>();
+        forEachRentableInstrument(type, 0, Integer.MAX_VALUE, instruments::add);
+        return instruments;
+    }
+
+    @Override
+    public int readRentableInstruments(String type, int afterId, int limit, Consumer<? super InstrumentDTO> consumer) {
+        return forEachRentableInstrument(type, afterId, limit, consumer);
+    }
+
+    private int forEachRentableInstrument(String type, int afterId, int limit, Consumer<? super Instrument> consumer) {
+        long today = LocalDate.now().toEpochDay();
+        int[] ids = sortedInstrumentIds;
+        int index = Arrays.binarySearch(ids, afterId);
+        index = index >= 0 ? index + 1 : -index - 1;
+        int count = 0;
+        try {
+            for (; index < ids.length && count < limit; index++) {
+                Instrument rentable = null;
+                InstrumentStripe stripe = instrumentStripe(ids[index]);
+                stripe.lock.lock();
+                try {
+                    Instrument instrument = stripe.instruments.get(ids[index]);
+                    if ((type.isBlank() || type.equals(instrument.getType())) && !isRented(stripe, ids[index], today)) {
+                        rentable = instrument;
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+                if (rentable != null) {
+                    consumer.accept(rentable);
+                    count++;
+                }
+            }
+        } finally {
+            // Also if the consumer fails
+            endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Scans the instruments, since there is no index on anything but id. In id order
+     * the scan starts after the last instrument of the page before and stops at the
+     * limit, in price order all matching instruments are collected and sorted first.
+     */
+    @Override
+    public int searchRentableInstruments(InstrumentSearch search, int limit, Consumer<? super InstrumentDTO> consumer) {
+        long today = LocalDate.now().toEpochDay();
+        int[] ids = sortedInstrumentIds;
+        boolean inIdOrder = search.getOrder() == InstrumentSearch.Order.ID;
+        int index = 0;
+        if (inIdOrder && search.isContinued()) {
+            index = Arrays.binarySearch(ids, search.getAfterId());
+            index = index >= 0 ? index + 1 : -index - 1;
+        }
+        List<Instrument> found = new ArrayList<>();
+        for (; index < ids.length && !(inIdOrder && found.size() == limit); index++) {
+            InstrumentStripe stripe = instrumentStripe(ids[index]);
+            stripe.lock.lock();
+            try {
+                Instrument instrument = stripe.instruments.get(ids[index]);
+                if (search.matches(instrument) && !isRented(stripe, ids[index], today)) {
+                    found.add(instrument);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        endTransaction();
+        if (!inIdOrder) {
+            found.sort(search.comparator());
+        }
+        int count = Math.min(found.size(), limit);
+        found.subList(0, count).forEach(consumer);
+        return count;
+    }
+
+    @Override
+    public List<Instrument> readAllInstruments() {
+        List<Instrument> instruments = new ArrayList<>();
+        for (InstrumentStripe stripe : instrumentStripes) {
+            stripe.lock.lock();
+            try {
+                stripe.instruments.forEachValue(instruments::add);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        endTransaction();
+        return instruments;
+    }
+
+    @Override
+    public List<Lease> readUnendedLeases() {
+        long today = LocalDate.now().toEpochDay();
+        List<Lease> leases = new ArrayList<>();
+        // Each lease is in the list of its instrument, which only holds leases that have not been retired
+        for (InstrumentStripe stripe : instrumentStripes) {
+            stripe.lock.lock();
+            try {
+                stripe.leasesByInstrument.forEachValue(instrumentLeases -> {
+                    for (StoredLease lease : instrumentLeases) {
+                        if (lease.endDay > today) {
+                            leases.add(lease.toLease());
+                        }
+                    }
+                });
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        endTransaction();
+        return leases;
+    }
+
+    @Override
+    public int[] readStudentIds() {
+        IntStream.Builder studentIds = IntStream.builder();
+        for (StudentStripe stripe : studentStripes) {
+            stripe.lock.lock();
+            try {
+                stripe.leasesByStudent.forEachKey(studentIds);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        endTransaction();
+        return studentIds.build().toArray();
+    }
+
+    @Override
+    public int readStudentLeaseCount(int studentId) {
+        StudentStripe stripe = studentStripe(studentId);
+        lockForTransaction(stripe.lock);
+        return countCurrentLeases(stripe, studentId, LocalDate.now().toEpochDay());
+    }
+
+    @Override
+    public boolean readCanRentInstrument(int instrumentId) {
+        InstrumentStripe stripe = instrumentStripe(instrumentId);
+        stripe.lock.lock();
+        try {
+            return !isRented(stripe, instrumentId, LocalDate.now().toEpochDay());
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public int createLease(int studentId, int instrumentId, String endDay) throws SchoolDBException {
+        try {
+            long parsedEndDay = parseEndDay(endDay);
+            StudentStripe studentStripe = studentStripe(studentId);
+            InstrumentStripe instrumentStripe = instrumentStripe(instrumentId);
+            lockForTransaction(studentStripe.lock);
+            lockForTransaction(instrumentStripe.lock);
+            return insertLease(studentStripe, instrumentStripe, studentId, instrumentId, parsedEndDay).id;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public void beginSerializableTransaction() {
+        // All transactions are serializable, since everything read is locked until the transaction ends.
+    }
+
+    @Override
+    public List<String> installIndexes(boolean create) {
+        // Every lookup is by key, there are no indexes to create.
+        return new ArrayList<>();
+    }
+
+    @Override
+    public List<String> explainListing(String type, int limit) throws SchoolDBException {
+        throw new SchoolDBException(NO_PLANS_MSG);
+    }
+
+    @Override
+    public List<String> explainRent(int studentId, int instrumentId, String endDay, boolean inOneCall)
+            throws SchoolDBException {
+        throw new SchoolDBException(NO_PLANS_MSG);
+    }
+
+    @Override
+    public List<String> explainTermination(int leaseId) throws SchoolDBException {
+        throw new SchoolDBException(NO_PLANS_MSG);
+    }
+
+    @Override
+    public void installActiveLeaseTable() {
+        // Nothing to install, the leases of each student and instrument are the leases that have not ended,
+        // once retireEndedLeases has removed the ended ones.
+    }
+
+    @Override
+    public int retireEndedLeases() {
+        long today = LocalDate.now().toEpochDay();
+        int[] retired = new int[1];
+        for (StudentStripe stripe : studentStripes) {
+            stripe.lock.lock();
+            try {
+                stripe.leasesByStudent.forEachValue(leases -> {
+                    int sizeBefore = leases.size();
+                    leases.removeIf(lease -> lease.endDay <= today);
+                    retired[0] += sizeBefore - leases.size();
+                });
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        for (InstrumentStripe stripe : instrumentStripes) {
+            stripe.lock.lock();
+            try {
+                stripe.leasesByInstrument.forEachValue(leases -> leases.removeIf(lease -> lease.endDay <= today));
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        endTransaction();
+        return retired[0];
+    }
+
+    @Override
+    public void installCreateLeaseFunction() {
+        // Nothing to install, createLeaseIfAllowed holds the locks while it checks and inserts.
+    }
+
+    @Override
+    public int createLeaseIfAllowed(int studentId, int instrumentId, String endDay) throws SchoolDBException {
+        try {
+            long parsedEndDay = parseEndDay(endDay);
+            long today = LocalDate.now().toEpochDay();
+            StudentStripe studentStripe = studentStripe(studentId);
+            InstrumentStripe instrumentStripe = instrumentStripe(instrumentId);
+            lockForTransaction(studentStripe.lock);
+            if (countCurrentLeases(studentStripe, studentId, today) >= MAX_LEASES_PER_STUDENT) {
+                return LEASE_LIMIT_REACHED;
+            }
+            lockForTransaction(instrumentStripe.lock);
+            if (isRented(instrumentStripe, instrumentId, today)) {
+                return INSTRUMENT_NOT_RENTABLE;
+            }
+            return insertLease(studentStripe, instrumentStripe, studentId, instrumentId, parsedEndDay).id;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public void createLeases(List<LeaseRequest> requests) throws SchoolDBException {
+        List<LeaseRequest> pending = new ArrayList<>();
+        TreeSet<Integer> studentStripeIndexes = new TreeSet<>();
+        TreeSet<Integer> instrumentStripeIndexes = new TreeSet<>();
+        for (LeaseRequest request : requests) {
+            if (request.isPending()) {
+                pending.add(request);
+                studentStripeIndexes.add(stripeOf(request.getStudentId()));
+                instrumentStripeIndexes.add(stripeOf(request.getInstrumentId()));
+            }
+        }
+        try {
+            // Stripes are locked in index order, so that concurrent bulk rentals can not deadlock
+            studentStripeIndexes.forEach(index -> lockForTransaction(studentStripes[index].lock));
+            instrumentStripeIndexes.forEach(index -> lockForTransaction(instrumentStripes[index].lock));
+            long today = LocalDate.now().toEpochDay();
+            for (LeaseRequest request : pending) {
+                StudentStripe studentStripe = studentStripe(request.getStudentId());
+                InstrumentStripe instrumentStripe = instrumentStripe(request.getInstrumentId());
+                if (!studentStripe.leasesByStudent.containsKey(request.getStudentId())) {
+                    request.reject("Student " + request.getStudentId() + " does not exist.");
+                } else if (countCurrentLeases(studentStripe, request.getStudentId(), today) >= MAX_LEASES_PER_STUDENT) {
+                    request.reject("Student cannot have more than " + MAX_LEASES_PER_STUDENT
+                            + " rentals simultaneously.");
+                } else if (!instrumentStripe.instruments.containsKey(request.getInstrumentId())
+                        || isRented(instrumentStripe, request.getInstrumentId(), today)) {
+                    request.reject("Instrument cannot be rented");
+                } else {
+                    StoredLease lease = insertLease(studentStripe, instrumentStripe, request.getStudentId(),
+                            request.getInstrumentId(), parseEndDay(request.getEndDay()));
+                    request.accept(lease.id);
+                }
+            }
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public Lease updateLeaseEndDate(int leaseId) {
+        try {
+            LeaseStripe leaseStripe = leaseStripes[stripeOf(leaseId)];
+            StoredLease lease;
+            leaseStripe.lock.lock();
+            try {
+                lease = leaseStripe.leases.get(leaseId);
+            } finally {
+                leaseStripe.lock.unlock();
+            }
+            if (lease == null) {
+                return null;
+            }
+            lockForTransaction(studentStripe(lease.studentId).lock);
+            lockForTransaction(instrumentStripe(lease.instrumentId).lock);
+            lease.endDay = LocalDate.now().toEpochDay();
+            return lease.toLease();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public List<Lease> updateLeaseEndDates(int[] leaseIds) {
+        Set<StoredLease> leases = new LinkedHashSet<>();
+        TreeSet<Integer> studentStripeIndexes = new TreeSet<>();
+        TreeSet<Integer> instrumentStripeIndexes = new TreeSet<>();
+        for (int leaseId : leaseIds) {
+            LeaseStripe leaseStripe = leaseStripes[stripeOf(leaseId)];
+            leaseStripe.lock.lock();
+            try {
+                StoredLease lease = leaseStripe.leases.get(leaseId);
+                if (lease != null && leases.add(lease)) {
+                    studentStripeIndexes.add(stripeOf(lease.studentId));
+                    instrumentStripeIndexes.add(stripeOf(lease.instrumentId));
+                }
+            } finally {
+                leaseStripe.lock.unlock();
+            }
+        }
+        try {
+            // Stripes are locked in index order, as by createLeases
+            studentStripeIndexes.forEach(index -> lockForTransaction(studentStripes[index].lock));
+            instrumentStripeIndexes.forEach(index -> lockForTransaction(instrumentStripes[index].lock));
+            long today = LocalDate.now().toEpochDay();
+            List<Lease> terminatedLeases = new ArrayList<>(leases.size());
+            for (StoredLease lease : leases) {
+                lease.endDay = today;
+                terminatedLeases.add(lease.toLease());
+            }
+            return terminatedLeases;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public List<Lease> updateLeaseEndDatesOfStudent(int studentId) {
+        long today = LocalDate.now().toEpochDay();
+        IntStream.Builder leaseIds = IntStream.builder();
+        StudentStripe stripe = studentStripe(studentId);
+        stripe.lock.lock();
+        try {
+            List<StoredLease> studentLeases = stripe.leasesByStudent.get(studentId);
+            if (studentLeases != null) {
+                for (StoredLease lease : studentLeases) {
+                    if (lease.endDay > today) {
+                        leaseIds.add(lease.id);
+                    }
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        return updateLeaseEndDates(leaseIds.build().toArray());
+    }
+
+    @Override
+    public List<Lease> updateLeaseEndDatesOfType(String type) {
+        long today = LocalDate.now().toEpochDay();
+        IntStream.Builder leaseIds = IntStream.builder();
+        for (InstrumentStripe stripe : instrumentStripes) {
+            stripe.lock.lock();
+            try {
+                stripe.leasesByInstrument.forEachValue(instrumentLeases -> {
+                    for (StoredLease lease : instrumentLeases) {
+                        if (lease.endDay > today && type.equals(stripe.instruments.get(lease.instrumentId).getType())) {
+                            leaseIds.add(lease.id);
+                        }
+                    }
+                });
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return updateLeaseEndDates(leaseIds.build().toArray());
+    }
+
+    @Override
+    public void listenForLeaseChanges(LeaseChangeListener listener) {
+        // Nothing to listen for, no other process can change the leases kept in this process.
+    }
+
+    @Override
+    public void commit() {
+        endTransaction();
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, the data lives as long as this object.
+    }
+
+    /**
+     * Must be called with the locks of both the student's and the instrument's stripe held.
+     */
+    private StoredLease insertLease(StudentStripe studentStripe, InstrumentStripe instrumentStripe,
+                                    int studentId, int instrumentId, long endDay) throws SchoolDBException {
+        List<StoredLease> studentLeases = studentStripe.leasesByStudent.get(studentId);
+        if (studentLeases == null) {
+            throw new SchoolDBException("Could not add lease. Student " + studentId + " does not exist.");
+        }
+        if (!instrumentStripe.instruments.containsKey(instrumentId)) {
+            throw new SchoolDBException("Could not add lease. Instrument " + instrumentId + " does not exist.");
+        }
+        StoredLease lease = new StoredLease(lastLeaseId.incrementAndGet(), studentId, instrumentId,
+                LocalDate.now().toEpochDay(), endDay);
+        studentLeases.add(lease);
+        instrumentStripe.leasesByInstrument.computeIfAbsent(instrumentId, id -> new ArrayList<>()).add(lease);
+        LeaseStripe leaseStripe = leaseStripes[stripeOf(lease.id)];
+        leaseStripe.lock.lock();
+        try {
+            leaseStripe.leases.put(lease.id, lease);
+        } finally {
+            leaseStripe.lock.unlock();
+        }
+        return lease;
+    }
+
+    private int countCurrentLeases(StudentStripe stripe, int studentId, long day) {
+        List<StoredLease> leases = stripe.leasesByStudent.get(studentId);
+        int count = 0;
+        if (leases != null) {
+            for (StoredLease lease : leases) {
+                if (lease.isCurrentOn(day)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private boolean isRented(InstrumentStripe stripe, int instrumentId, long day) {
+        List<StoredLease> leases = stripe.leasesByInstrument.get(instrumentId);
+        if (leases != null) {
+            for (StoredLease lease : leases) {
+                if (lease.isCurrentOn(day)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private long parseEndDay(String endDay) throws SchoolDBException {
+        try {
+            return LocalDate.parse(endDay, END_DAY_FORMAT).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new SchoolDBException("Could not add lease. Invalid end day " + endDay, e);
+        }
+    }
+
+    private void lockForTransaction(ReentrantLock lock) {
+        lock.lock();
+        transactionLocks.get().add(lock);
+    }
+
+    /**
+     * Ends the calling thread's transaction by releasing all locks it holds.
+     */
+    private void endTransaction() {
+        List<ReentrantLock> locks = transactionLocks.get();
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+        locks.clear();
+    }
+
+    private StudentStripe studentStripe(int studentId) {
+        return studentStripes[stripeOf(studentId)];
+    }
+
+    private InstrumentStripe instrumentStripe(int instrumentId) {
+        return instrumentStripes[stripeOf(instrumentId)];
+    }
+
+    private static int stripeOf(int id) {
+        return (id * 0x9E3779B9 >>> 16) & (STRIPES - 1);
+    }
+
+    private static class StudentStripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final IntObjectHashMap<List<StoredLease>> leasesByStudent = new IntObjectHashMap<>();
+    }
+
+    private static class InstrumentStripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final IntObjectHashMap<Instrument> instruments = new IntObjectHashMap<>();
+        private final IntObjectHashMap<List<StoredLease>> leasesByInstrument = new IntObjectHashMap<>();
+    }
+
+    private static class LeaseStripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final IntObjectHashMap<StoredLease> leases = new IntObjectHashMap<>();
+    }
+
+    private static class StoredLease {
+        private final int id;
+        private final int studentId;
+        private final int instrumentId;
+        private final long startDay;
+        // Only changed with the student's and the instrument's stripes locked
+        private volatile long endDay;
+
+        private StoredLease(int id, int studentId, int instrumentId, long startDay, long endDay) {
+            this.id = id;
+            this.studentId = studentId;
+            this.instrumentId = instrumentId;
+            this.startDay = startDay;
+            this.endDay = endDay;
+        }
+
+        private boolean isCurrentOn(long day) {
+            return startDay <= day && day < endDay;
+        }
+
+        private Lease toLease() {
+            return new Lease(id, studentId, instrumentId, LocalDate.ofEpochDay(startDay), LocalDate.ofEpochDay(endDay));
+        }
+    }
+}
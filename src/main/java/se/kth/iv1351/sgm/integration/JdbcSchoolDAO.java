@@ -0,0 +1,1232 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.sgm.integration;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import se.kth.iv1351.sgm.model.Instrument;
+import se.kth.iv1351.sgm.model.InstrumentDTO;
+import se.kth.iv1351.sgm.model.InstrumentSearch;
+import se.kth.iv1351.sgm.model.Lease;
+import se.kth.iv1351.sgm.model.LeaseRequest;
+
+/**
+ * This data access object (DAO) encapsulates all database calls in the school
+ * application. No code outside this class shall have any knowledge about the
+ * database.
+ */
+public class JdbcSchoolDAO implements SchoolDAO {
+    private static final String INSTRUMENT_COLUMN_ID = "id";
+    private static final String INSTRUMENT_COLUMN_PRICE = "price";
+    private static final String INSTRUMENT_COLUMN_BRAND = "brand";
+    private static final String INSTRUMENT_COLUMN_QUALITY = "quality";
+    private static final String INSTRUMENT_COLUMN_TYPE = "type";
+    private static final String COLUMN_COUNT = "count";
+    private static final String COLUMN_IS_EMPTY = "is_empty";
+    private static final String LEASE_COLUMN_ID = "id";
+    private static final String LEASE_COLUMN_STUDENT_ID = "student_id";
+    private static final String LEASE_COLUMN_INSTRUMENT_ID = "instrument_id";
+    private static final String LEASE_COLUMN_START_DAY = "start_day";
+    private static final String LEASE_COLUMN_END_DAY = "end_day";
+    private static final String LEASE_COLUMNS = LEASE_COLUMN_ID + ", " + LEASE_COLUMN_STUDENT_ID + ", " +
+            LEASE_COLUMN_INSTRUMENT_ID + ", " + LEASE_COLUMN_START_DAY + ", " + LEASE_COLUMN_END_DAY;
+
+
+    private static final String SET_SERIALIZABLE_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE";
+    private static final String CREATE_LEASE_SQL =
+            "INSERT INTO lease(student_id, instrument_id, start_day, end_day) " +
+                    "VALUES (?, ?, CURRENT_DATE, CAST(? AS DATE)) " +
+                    "RETURNING id";
+    private static final String TERMINATE_LEASE_SQL =
+            "UPDATE lease " +
+                    "SET end_day = CURRENT_DATE " +
+                    "WHERE id = ? " +
+                    "RETURNING " + LEASE_COLUMNS;
+    // The rows are locked in id order, so that two batches of terminations can not deadlock each other
+    private static final String TERMINATE_LEASES_SQL =
+            "UPDATE lease " +
+                    "SET end_day = CURRENT_DATE " +
+                    "WHERE id IN (SELECT id FROM lease WHERE id = ANY(?) ORDER BY id FOR UPDATE) " +
+                    "RETURNING " + LEASE_COLUMNS;
+    // Locks the found leases in id order like TERMINATE_LEASES_SQL, so that the two can not deadlock. A lease
+    // that a concurrent transaction ended while it was waiting for the lock is left out.
+    private static final String TERMINATE_FOUND_LEASES_SQL =
+            "UPDATE lease " +
+                    "SET end_day = CURRENT_DATE " +
+                    "WHERE id IN (SELECT id FROM lease WHERE id IN (%s) AND end_day > CURRENT_DATE " +
+                    "    ORDER BY id FOR UPDATE) " +
+                    "RETURNING " + LEASE_COLUMNS;
+    private static final String INSERT_LEASE_SQL =
+            "INSERT INTO lease(student_id, instrument_id, start_day, end_day) " +
+                    "VALUES (?, ?, CURRENT_DATE, CAST(? AS DATE))";
+    private static final String FIND_ALL_STUDENT_IDS_SQL = "SELECT id FROM student";
+    private static final String FIND_EXISTING_STUDENTS_SQL =
+            "SELECT id FROM student WHERE id = ANY(?)";
+    private static final String CALL_CREATE_LEASE_FUNCTION_SQL =
+            "SELECT create_lease_if_allowed(?, ?, CAST(? AS DATE))";
+    private static final String FIND_ALL_INSTRUMENTS_SQL =
+            "SELECT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_PRICE + ", " + INSTRUMENT_COLUMN_BRAND + ", " +
+                    INSTRUMENT_COLUMN_QUALITY + ", " + INSTRUMENT_COLUMN_TYPE + " FROM rentable_instrument";
+    // Serializes the installations of processes starting at the same time until commit, since replacing
+    // a function that another transaction is replacing fails
+    private static final String LOCK_INSTALLATION_SQL = "SELECT pg_advisory_xact_lock(hashtext('sgm.install'))";
+    // Replaced at every startup so that they match this code, which only locks the functions themselves
+    private static final String INSTALL_ACTIVE_LEASE_FUNCTIONS_SQL =
+            "CREATE OR REPLACE FUNCTION copy_active_lease() RETURNS TRIGGER AS $$ " +
+                    "BEGIN " +
+                    "    IF TG_OP <> 'INSERT' THEN " +
+                    "        DELETE FROM active_lease WHERE lease_id = OLD.id; " +
+                    "    END IF; " +
+                    "    IF TG_OP <> 'DELETE' THEN " +
+                    "        IF NEW.end_day > CURRENT_DATE THEN " +
+                    "            INSERT INTO active_lease(lease_id, student_id, instrument_id, start_day, end_day) " +
+                    "                VALUES (NEW.id, NEW.student_id, NEW.instrument_id, NEW.start_day, NEW.end_day); " +
+                    "        END IF; " +
+                    "    END IF; " +
+                    "    RETURN NULL; " +
+                    "END; " +
+                    "$$ LANGUAGE plpgsql; " +
+                    "CREATE OR REPLACE FUNCTION count_active_lease() RETURNS TRIGGER AS $$ " +
+                    "BEGIN " +
+                    "    IF TG_OP = 'INSERT' THEN " +
+                    "        UPDATE student SET active_lease_count = active_lease_count + 1 WHERE id = NEW.student_id; " +
+                    "    ELSE " +
+                    "        UPDATE student SET active_lease_count = active_lease_count - 1 WHERE id = OLD.student_id; " +
+                    "    END IF; " +
+                    "    RETURN NULL; " +
+                    "END; " +
+                    "$$ LANGUAGE plpgsql";
+    private static final String FIND_ACTIVE_LEASE_TABLE_SQL =
+            "SELECT to_regclass('active_lease') IS NOT NULL " +
+                    "AND EXISTS (SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() " +
+                    "    AND table_name = 'student' AND column_name = 'active_lease_count') " +
+                    "AND EXISTS (SELECT 1 FROM pg_trigger " +
+                    "    WHERE tgrelid = to_regclass('lease') AND tgname = 'copy_active_lease') " +
+                    "AND EXISTS (SELECT 1 FROM pg_trigger " +
+                    "    WHERE tgrelid = to_regclass('active_lease') AND tgname = 'count_active_lease')";
+    // Keeps a copy of each lease that has not ended in active_lease, and the number of such leases of
+    // each student in student.active_lease_count, both updated by triggers in the transaction that
+    // changes the lease. The copy is then rebuilt from the lease history, in case leases were changed
+    // while the triggers did not exist. Creating the trigger keeps others from changing leases until commit,
+    // so this is only executed if something is missing.
+    private static final String INSTALL_ACTIVE_LEASE_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS active_lease (" +
+                    "    lease_id INT PRIMARY KEY, " +
+                    "    student_id INT NOT NULL, " +
+                    "    instrument_id INT NOT NULL, " +
+                    "    start_day DATE NOT NULL, " +
+                    "    end_day DATE NOT NULL); " +
+                    "CREATE INDEX IF NOT EXISTS active_lease_student_id_idx ON active_lease(student_id); " +
+                    "CREATE INDEX IF NOT EXISTS active_lease_instrument_id_idx ON active_lease(instrument_id); " +
+                    "ALTER TABLE student ADD COLUMN IF NOT EXISTS active_lease_count INT NOT NULL DEFAULT 0; " +
+                    "DROP TRIGGER IF EXISTS copy_active_lease ON lease; " +
+                    "CREATE TRIGGER copy_active_lease AFTER INSERT OR UPDATE OR DELETE ON lease " +
+                    "    FOR EACH ROW EXECUTE PROCEDURE copy_active_lease(); " +
+                    "DROP TRIGGER IF EXISTS count_active_lease ON active_lease; " +
+                    "CREATE TRIGGER count_active_lease AFTER INSERT OR DELETE ON active_lease " +
+                    "    FOR EACH ROW EXECUTE PROCEDURE count_active_lease(); " +
+                    "DELETE FROM active_lease; " +
+                    "INSERT INTO active_lease(lease_id, student_id, instrument_id, start_day, end_day) " +
+                    "    SELECT " + LEASE_COLUMNS + " FROM lease WHERE end_day > CURRENT_DATE; " +
+                    "UPDATE student AS s SET active_lease_count = " +
+                    "    (SELECT COUNT(*) FROM active_lease AS a WHERE a.student_id = s.id)";
+    // Leases that have ended are only kept in the lease history, the trigger decreases the student's count
+    private static final String RETIRE_ENDED_LEASES_SQL = "DELETE FROM active_lease WHERE end_day <= CURRENT_DATE";
+
+    // Tells the processes listening on the lease_changed channel about each created or terminated lease,
+    // with the application_name of the connection that changed it. The notification is sent if and when
+    // the transaction commits, so listeners never see a change that was rolled back.
+    private static final String INSTALL_LEASE_CHANGE_NOTIFICATION_SQL =
+            "CREATE OR REPLACE FUNCTION notify_lease_change() RETURNS TRIGGER AS $$ " +
+                    "BEGIN " +
+                    "    PERFORM pg_notify('" + LeaseChangeSubscription.CHANNEL + "', concat_ws(',', TG_OP, " +
+                    "        NEW.id, NEW.student_id, NEW.instrument_id, to_char(NEW.start_day, 'YYYY-MM-DD'), " +
+                    "        to_char(NEW.end_day, 'YYYY-MM-DD'), current_setting('application_name'))); " +
+                    "    RETURN NULL; " +
+                    "END; " +
+                    "$$ LANGUAGE plpgsql";
+    private static final String FIND_LEASE_CHANGE_TRIGGER_SQL =
+            "SELECT EXISTS (SELECT 1 FROM pg_trigger WHERE tgrelid = to_regclass('lease') AND tgname = 'notify_lease_change')";
+    // Locks lease until commit, so this is only executed if the trigger is missing
+    private static final String CREATE_LEASE_CHANGE_TRIGGER_SQL =
+            "CREATE TRIGGER notify_lease_change AFTER INSERT OR UPDATE OF end_day ON lease " +
+                    "    FOR EACH ROW EXECUTE PROCEDURE notify_lease_change()";
+
+    private static final String EXPLAIN_PREFIX = "EXPLAIN (ANALYZE, BUFFERS) ";
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final String DEFAULT_DB_URL = "jdbc:postgresql://localhost:5432/sgm";
+    private static final String DEFAULT_DB_USER = "postgres";
+    private static final String DEFAULT_DB_PASSWORD = "post";
+
+    private final int fetchSize = Integer.getInteger("sgm.db.fetchSize", 100);
+    private final ConnectionPool connectionPool;
+    // The connection of the transaction that is ongoing in the calling thread, if any.
+    private final ThreadLocal<PooledConnection> transactionConnection = new ThreadLocal<>();
+    // The lease history until the active_lease table is installed
+    private volatile RentalQueries queries = RentalQueries.LEASE_HISTORY;
+    // Null unless there is a replica to read from
+    private final ReplicaRouter replica;
+    private final String url;
+    private final Properties connectionProperties = new Properties();
+    // Set as application_name of all connections, to tell the lease changes of this process from those of others
+    private final String applicationName = "sgm-" + Long.toHexString(new Random().nextLong());
+    // Null until listenForLeaseChanges is called
+    private volatile LeaseChangeSubscription leaseChanges;
+
+    /**
+     * Constructs a new DAO object connected to the school database. The connection
+     * pool is configured with the system properties <code>sgm.db.url</code>,
+     * <code>sgm.db.user</code>, <code>sgm.db.password</code>, <code>sgm.pool.size</code>,
+     * <code>sgm.pool.borrowTimeoutSeconds</code>, <code>sgm.pool.validateAfterSeconds</code>,
+     * <code>sgm.pool.maxIdleSeconds</code> and <code>sgm.db.prepareThreshold</code>. The
+     * number of rows fetched at a time when streaming is set by <code>sgm.db.fetchSize</code>.
+     * If <code>sgm.db.replicaUrl</code> is set, reads that may see slightly old data are
+     * sent to that read-only replica, see {@link ReplicaRouter}, with the same user and
+     * password, while it lags at most <code>sgm.replica.maxLagSeconds</code>, measured every
+     * <code>sgm.replica.checkIntervalSeconds</code>.
+     */
+    public JdbcSchoolDAO() throws SchoolDBException {
+        this(System.getProperty("sgm.db.url", DEFAULT_DB_URL),
+                System.getProperty("sgm.db.user", DEFAULT_DB_USER),
+                System.getProperty("sgm.db.password", DEFAULT_DB_PASSWORD),
+                Integer.getInteger("sgm.pool.size", 8),
+                System.getProperty("sgm.db.replicaUrl"));
+    }
+
+    /**
+     * Constructs a new DAO object connected to the specified database.
+     *
+     * @param url      The JDBC url of the database.
+     * @param user     The database user.
+     * @param password The password of the database user.
+     * @param poolSize The maximum number of simultaneously open connections.
+     */
+    public JdbcSchoolDAO(String url, String user, String password, int poolSize) throws SchoolDBException {
+        this(url, user, password, poolSize, null);
+    }
+
+    /**
+     * Constructs a new DAO object connected to the specified database, which sends
+     * reads that may see slightly old data to the specified read-only replica. If the
+     * replica can not be reached, the database is read instead until it can.
+     *
+     * @param url        The JDBC url of the database.
+     * @param user       The database user, also used for the replica.
+     * @param password   The password of the database user.
+     * @param poolSize   The maximum number of simultaneously open connections, to each database.
+     * @param replicaUrl The JDBC url of the replica, or null if there is none.
+     */
+    public JdbcSchoolDAO(String url, String user, String password, int poolSize, String replicaUrl)
+            throws SchoolDBException {
+        this.url = url;
+        connectionProperties.setProperty("user", user);
+        connectionProperties.setProperty("password", password);
+        connectionProperties.setProperty("ApplicationName", applicationName);
+        // Use a named server-side statement from the first execution, since all
+        // statements are cached and executed many times on each connection.
+        connectionProperties.setProperty("prepareThreshold",
+                System.getProperty("sgm.db.prepareThreshold", "1"));
+        connectionPool = new ConnectionPool(url, connectionProperties, poolSize,
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.pool.borrowTimeoutSeconds", 30)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.pool.validateAfterSeconds", 5)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.pool.maxIdleSeconds", 300)),
+                VALIDATION_TIMEOUT_SECONDS);
+        try {
+            connectToSchoolDB();
+        } catch (SQLException exception) {
+            connectionPool.close();
+            throw new SchoolDBException("Could not connect to datasource.", exception);
+        }
+        if (replicaUrl == null) {
+            replica = null;
+            return;
+        }
+        replica = new ReplicaRouter(new ConnectionPool(replicaUrl, connectionProperties, poolSize,
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.pool.borrowTimeoutSeconds", 30)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.pool.validateAfterSeconds", 5)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.pool.maxIdleSeconds", 300)),
+                VALIDATION_TIMEOUT_SECONDS, true, "replicaPool"),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.replica.maxLagSeconds", 5)),
+                TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.replica.checkIntervalSeconds", 1)));
+        replica.checkLag();
+    }
+
+    /**
+     * @return A list of all rentable_instruments (not currently leased)
+     */
+    @Override
+    public List<Instrument> readRentableInstruments(String type) throws SchoolDBException {
+        String failureMsg = "Could not list instruments.";
+        beginReadOfReplica();
+        List<Instrument> instruments = new ArrayList<>();
+        try (ResultSet result = getFindAllRentableInstrumentsQuery(type).executeQuery()) {
+            while (result.next()) {
+                instruments.add(instrumentFrom(result));
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return instruments;
+    }
+
+    /**
+     * Streams the rentable_instruments (not currently leased) with an id higher than the
+     * specified id, in id order. The rows are read through a server-side cursor, a few
+     * at a time, and each one is handed to the consumer as soon as it has been read.
+     *
+     * @param type     The instrument type, or a blank string for all types.
+     * @param afterId  Only instruments with a higher id are read, zero to start from the first.
+     * @param limit    The maximum number of instruments to read.
+     * @param consumer Called once for each instrument.
+     * @return The number of instruments handed to the consumer
+     */
+    @Override
+    public int readRentableInstruments(String type, int afterId, int limit,
+                                       Consumer<? super InstrumentDTO> consumer) throws SchoolDBException {
+        String failureMsg = "Could not list instruments.";
+        beginReadOfReplica();
+        int count = 0;
+        try {
+            PreparedStatement statement;
+            int parameterIndex = 1;
+            if (type.isBlank()) {
+                statement = prepare(queries.findRentableInstrumentsPage);
+            } else {
+                statement = prepare(queries.findRentableInstrumentsOfTypePage);
+                statement.setString(parameterIndex++, type);
+            }
+            statement.setInt(parameterIndex++, afterId);
+            statement.setInt(parameterIndex, limit);
+            // A fetch size makes the driver read through a cursor, since auto commit is off
+            statement.setFetchSize(fetchSize);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    consumer.accept(instrumentFrom(result));
+                    count++;
+                }
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        } catch (RuntimeException consumerFailure) {
+            // Thrown by the consumer, the transaction and its cursor must still end
+            abandonTransaction();
+            throw consumerFailure;
+        }
+        return count;
+    }
+
+    /**
+     * Streams the rentable_instruments (not currently leased) that meet the conditions
+     * of the search, through a server-side cursor like
+     * {@link #readRentableInstruments(String, int, int, Consumer)}. Each condition that is
+     * set adds a parameter to the statement, so there is one cached statement per
+     * combination of conditions. A page after the first starts after the id, or the
+     * price and id, of the last instrument of the page before, which the indexes on
+     * <code>rentable_instrument</code> seek to directly.
+     */
+    @Override
+    public int searchRentableInstruments(InstrumentSearch search, int limit,
+                                         Consumer<? super InstrumentDTO> consumer) throws SchoolDBException {
+        String failureMsg = "Could not search instruments.";
+        beginReadOfReplica();
+        List<Object> parameters = new ArrayList<>();
+        String sql = searchSql(search, parameters);
+        int count = 0;
+        try {
+            PreparedStatement statement = prepare(sql);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            statement.setInt(parameters.size() + 1, limit);
+            statement.setFetchSize(fetchSize);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    consumer.accept(instrumentFrom(result));
+                    count++;
+                }
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        } catch (RuntimeException consumerFailure) {
+            // Thrown by the consumer, the transaction and its cursor must still end
+            abandonTransaction();
+            throw consumerFailure;
+        }
+        return count;
+    }
+
+    /**
+     * @param parameters Receives the values of the parameters of the statement, except the limit, which is last.
+     * @return The statement finding the instruments of the search.
+     */
+    private String searchSql(InstrumentSearch search, List<Object> parameters) {
+        StringBuilder sql = new StringBuilder(queries.findAllRentableInstruments);
+        if (search.getType() != null) {
+            sql.append(" AND type = ?");
+            parameters.add(search.getType());
+        }
+        if (search.getBrand() != null) {
+            sql.append(" AND brand = ?");
+            parameters.add(search.getBrand());
+        }
+        if (search.getQuality() != null) {
+            sql.append(" AND quality = ?");
+            parameters.add(search.getQuality());
+        }
+        if (search.getMinPrice() > 0) {
+            sql.append(" AND price >= ?");
+            parameters.add(search.getMinPrice());
+        }
+        if (search.getMaxPrice() < Integer.MAX_VALUE) {
+            sql.append(" AND price <= ?");
+            parameters.add(search.getMaxPrice());
+        }
+        if (search.getOrder() == InstrumentSearch.Order.PRICE) {
+            if (search.isContinued()) {
+                // A row comparison, unlike price > ? OR (price = ? AND id > ?), is one index condition
+                sql.append(" AND (price, id) > (?, ?)");
+                parameters.add(search.getAfterPrice());
+                parameters.add(search.getAfterId());
+            }
+            sql.append(" ORDER BY price, id");
+        } else {
+            if (search.isContinued()) {
+                sql.append(" AND id > ?");
+                parameters.add(search.getAfterId());
+            }
+            sql.append(" ORDER BY id");
+        }
+        return sql.append(" LIMIT ?").toString();
+    }
+
+    /**
+     * @return All rentable_instruments, whether they are leased or not
+     */
+    @Override
+    public List<Instrument> readAllInstruments() throws SchoolDBException {
+        String failureMsg = "Could not list instruments.";
+        beginReadOfReplica();
+        List<Instrument> instruments = new ArrayList<>();
+        try (ResultSet result = prepare(FIND_ALL_INSTRUMENTS_SQL).executeQuery()) {
+            while (result.next()) {
+                instruments.add(instrumentFrom(result));
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return instruments;
+    }
+
+    /**
+     * @return All leases that have not yet ended, including those starting in the future
+     */
+    @Override
+    public List<Lease> readUnendedLeases() throws SchoolDBException {
+        String failureMsg = "Could not list leases.";
+        List<Lease> leases = new ArrayList<>();
+        try (ResultSet result = prepare(queries.findUnendedLeases).executeQuery()) {
+            while (result.next()) {
+                leases.add(leaseFrom(result));
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return leases;
+    }
+
+    @Override
+    public int[] readStudentIds() throws SchoolDBException {
+        String failureMsg = "Could not list students.";
+        int[] studentIds = new int[1024];
+        int count = 0;
+        try {
+            PreparedStatement statement = prepare(FIND_ALL_STUDENT_IDS_SQL);
+            statement.setFetchSize(fetchSize);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    if (count == studentIds.length) {
+                        studentIds = Arrays.copyOf(studentIds, count * 2);
+                    }
+                    studentIds[count++] = result.getInt(1);
+                }
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return Arrays.copyOf(studentIds, count);
+    }
+
+    /**
+     * Reads number of leases a student with given student_id has
+     **/
+    @Override
+    public int readStudentLeaseCount(int studentId) throws SchoolDBException {
+        String failureMsg = "Could not get student lease count.";
+        int count = 0;
+        try {
+            if (!connection().isInSerializableTransaction()) {
+                try (ResultSet lockResult = getLeaseLockQuery(studentId).executeQuery()) {
+                    // A student without leases that have not ended has no current leases
+                    if (queries.lockReadsUnendedLeaseCount && (!lockResult.next() || lockResult.getInt(1) == 0)) {
+                        return 0;
+                    }
+                }
+            }
+            PreparedStatement statement = getCountRentedInstrumentsQuery(null, studentId);
+            count = getQueryRowCount(statement);
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return count;
+    }
+
+    @Override
+    public void beginSerializableTransaction() throws SchoolDBException {
+        String failureMsg = "Could not start serializable transaction.";
+        try {
+            PooledConnection pooledConnection = connection();
+            pooledConnection.prepare(SET_SERIALIZABLE_SQL).execute();
+            pooledConnection.markSerializableTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+    }
+
+    /**
+     * @return true if the instrument itself is not currently rented
+     **/
+    @Override
+    public boolean readCanRentInstrument(int instrumentId) throws SchoolDBException {
+        String failureMsg = "Could not read instrument rented status.";
+        boolean canRentInstrument = false;
+        try (ResultSet rentedInstrumentsResults = getCountRentedInstrumentsQuery(instrumentId, null).executeQuery()) {
+            rentedInstrumentsResults.next();
+            canRentInstrument = rentedInstrumentsResults.getBoolean(COLUMN_IS_EMPTY);
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return canRentInstrument;
+    }
+
+    /**
+     * Creates lease
+     */
+    @Override
+    public int createLease(int studentId, int instrumentId, String endDay) throws SchoolDBException {
+        String failureMsg = "Could not add lease.";
+        int lease_id = 0;
+        try (ResultSet leaseResult = getLeaseCreatorQuery(studentId, instrumentId, endDay).executeQuery()) {
+            leaseResult.next();
+            lease_id = leaseResult.getInt("id");
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return lease_id;
+    }
+
+    /**
+     * Creates the <code>active_lease</code> table, which holds a copy of each lease that
+     * has not ended, and the <code>active_lease_count</code> column of <code>student</code>,
+     * together with the triggers that keep them up to date when leases change. From then
+     * on, current leases are found in <code>active_lease</code>, so that the cost of
+     * renting and listing does not grow with the lease history. Ended leases are removed
+     * from <code>active_lease</code> by {@link #retireEndedLeases()}. If all of it already
+     * exists, only the trigger functions are replaced, so that starting another process
+     * neither locks <code>lease</code> nor rebuilds <code>active_lease</code>.
+     */
+    @Override
+    public void installActiveLeaseTable() throws SchoolDBException {
+        try (Statement statement = connection().getConnection().createStatement()) {
+            statement.execute(LOCK_INSTALLATION_SQL);
+            statement.execute(INSTALL_ACTIVE_LEASE_FUNCTIONS_SQL);
+            if (!isTrue(statement, FIND_ACTIVE_LEASE_TABLE_SQL)) {
+                statement.execute(INSTALL_ACTIVE_LEASE_TABLE_SQL);
+            }
+            commitTransaction();
+            queries = RentalQueries.ACTIVE_LEASES;
+        } catch (SQLException sqlException) {
+            handleException("Could not create the active_lease table.", sqlException);
+        }
+    }
+
+    /**
+     * Creates the trigger that sends a notification on the <code>lease_changed</code>
+     * channel for each lease that is created or terminated, unless it exists, and starts
+     * receiving those notifications on a connection of its own, see
+     * {@link LeaseChangeSubscription}.
+     */
+    @Override
+    public void listenForLeaseChanges(LeaseChangeListener listener) throws SchoolDBException {
+        try (Statement statement = connection().getConnection().createStatement()) {
+            statement.execute(LOCK_INSTALLATION_SQL);
+            statement.execute(INSTALL_LEASE_CHANGE_NOTIFICATION_SQL);
+            if (!isTrue(statement, FIND_LEASE_CHANGE_TRIGGER_SQL)) {
+                statement.execute(CREATE_LEASE_CHANGE_TRIGGER_SQL);
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not create the lease change trigger.", sqlException);
+        }
+        leaseChanges = new LeaseChangeSubscription(url, connectionProperties, applicationName, listener);
+    }
+
+    /**
+     * Removes the leases that have ended from <code>active_lease</code>, if it is installed.
+     *
+     * @return The number of removed leases.
+     */
+    @Override
+    public int retireEndedLeases() throws SchoolDBException {
+        if (queries != RentalQueries.ACTIVE_LEASES) {
+            return 0;
+        }
+        int retired = 0;
+        try {
+            retired = prepare(RETIRE_ENDED_LEASES_SQL).executeUpdate();
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not retire ended leases.", sqlException);
+        }
+        return retired;
+    }
+
+    /**
+     * Creates the indexes that the queries need, see {@link SchemaBootstrap}. Each
+     * index is built concurrently in its own transaction.
+     */
+    @Override
+    public List<String> installIndexes(boolean create) throws SchoolDBException {
+        List<String> missingIndexes = new ArrayList<>();
+        try {
+            Connection connection = connection().getConnection();
+            connection.setAutoCommit(true);
+            try {
+                missingIndexes = new SchemaBootstrap(connection).installIndexes(create);
+            } finally {
+                connection.setAutoCommit(false);
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not check the indexes.", sqlException);
+        }
+        return missingIndexes;
+    }
+
+    /**
+     * Executes the statement that {@link #readRentableInstruments(String, int, int, Consumer)}
+     * executes for the first page, with <code>EXPLAIN (ANALYZE, BUFFERS)</code>.
+     */
+    @Override
+    public List<String> explainListing(String type, int limit) throws SchoolDBException {
+        List<String> plans = new ArrayList<>();
+        try {
+            if (type.isBlank()) {
+                explain(plans, queries.findRentableInstrumentsPage, 0, limit);
+            } else {
+                explain(plans, queries.findRentableInstrumentsOfTypePage, type, 0, limit);
+            }
+            rollbackTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not explain listing.", sqlException);
+        }
+        return plans;
+    }
+
+    /**
+     * Executes the statements that renting executes, with <code>EXPLAIN (ANALYZE, BUFFERS)</code>,
+     * and rolls back the lease that is created. In a serializable transaction the student
+     * is not locked, like in {@link #readStudentLeaseCount(int)}. Since explaining the call
+     * of the function used by {@link #createLeaseIfAllowed} only shows the call, the
+     * statements in the function are executed one by one instead, with the same
+     * parameters, and the lease is inserted like {@link #createLease} inserts it.
+     */
+    @Override
+    public List<String> explainRent(int studentId, int instrumentId, String endDay, boolean inOneCall)
+            throws SchoolDBException {
+        List<String> plans = new ArrayList<>();
+        try {
+            if (inOneCall) {
+                explain(plans, queries.lockStudentInFunction, studentId);
+                explain(plans, queries.countRentedByStudentInFunction, studentId);
+                explain(plans, queries.findRentedInstrumentInFunction, instrumentId);
+                explain(plans, CREATE_LEASE_SQL, studentId, instrumentId, endDay);
+            } else {
+                if (!connection().isInSerializableTransaction()) {
+                    explain(plans, queries.lockStudent, studentId);
+                }
+                explain(plans, queries.countRentedByStudent, studentId);
+                explain(plans, queries.countRentedByInstrument, instrumentId);
+                explain(plans, CREATE_LEASE_SQL, studentId, instrumentId, endDay);
+            }
+            rollbackTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not explain rent.", sqlException);
+        }
+        return plans;
+    }
+
+    /**
+     * Executes the statement that terminating a lease executes, with
+     * <code>EXPLAIN (ANALYZE, BUFFERS)</code>, and rolls back the termination.
+     */
+    @Override
+    public List<String> explainTermination(int leaseId) throws SchoolDBException {
+        List<String> plans = new ArrayList<>();
+        try {
+            explain(plans, TERMINATE_LEASE_SQL, leaseId);
+            rollbackTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not explain terminate.", sqlException);
+        }
+        return plans;
+    }
+
+    /**
+     * Creates the function used by {@link #createLeaseIfAllowed}, replacing any older version.
+     */
+    @Override
+    public void installCreateLeaseFunction() throws SchoolDBException {
+        try (Statement statement = connection().getConnection().createStatement()) {
+            statement.execute(queries.createLeaseFunction);
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException("Could not create the create_lease_if_allowed function.", sqlException);
+        }
+    }
+
+    /**
+     * Creates a lease if the student is below the lease limit and the instrument is
+     * not rented, with one call to the database. The student's leases are locked only
+     * while the function runs. If there is no ongoing transaction the function runs in
+     * auto commit mode, so that no separate commit is needed.
+     *
+     * @return The id of the created lease, or {@link #LEASE_LIMIT_REACHED} or
+     * {@link #INSTRUMENT_NOT_RENTABLE} if the lease is not allowed.
+     */
+    @Override
+    public int createLeaseIfAllowed(int studentId, int instrumentId, String endDay) throws SchoolDBException {
+        String failureMsg = "Could not add lease.";
+        int result = 0;
+        try {
+            boolean ongoingTransaction = transactionConnection.get() != null;
+            Connection connection = connection().getConnection();
+            PreparedStatement statement = prepare(CALL_CREATE_LEASE_FUNCTION_SQL);
+            statement.setInt(1, studentId);
+            statement.setInt(2, instrumentId);
+            statement.setString(3, endDay);
+            connection.setAutoCommit(!ongoingTransaction);
+            try (ResultSet leaseResult = statement.executeQuery()) {
+                leaseResult.next();
+                result = leaseResult.getInt(1);
+            } finally {
+                connection.setAutoCommit(false);
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the requested leases that are allowed, in one transaction. All students
+     * and instruments are checked with one query each, requests that would exceed the
+     * lease limit, that name an unknown student, or that name an instrument that is
+     * rented or requested by an earlier row are rejected, and the remaining leases are
+     * inserted as one batch. Each request is accepted or rejected, unless the whole
+     * transaction fails, in which case no lease is created and the outcomes must be
+     * discarded.
+     *
+     * @param requests The leases to create. Requests that are already rejected are skipped.
+     */
+    @Override
+    public void createLeases(List<LeaseRequest> requests) throws SchoolDBException {
+        String failureMsg = "Could not add leases.";
+        List<LeaseRequest> pending = new ArrayList<>();
+        for (LeaseRequest request : requests) {
+            if (request.isPending()) {
+                pending.add(request);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            Integer[] studentIds = pending.stream().map(LeaseRequest::getStudentId).distinct().toArray(Integer[]::new);
+            Integer[] instrumentIds = pending.stream().map(LeaseRequest::getInstrumentId).distinct().toArray(Integer[]::new);
+
+            PreparedStatement lockStatement = prepare(queries.lockStudents);
+            lockStatement.setArray(1, createIntArray(studentIds));
+            lockStatement.execute();
+
+            Set<Integer> existingStudents = new HashSet<>();
+            PreparedStatement studentStatement = prepare(FIND_EXISTING_STUDENTS_SQL);
+            studentStatement.setArray(1, createIntArray(studentIds));
+            try (ResultSet result = studentStatement.executeQuery()) {
+                while (result.next()) {
+                    existingStudents.add(result.getInt(1));
+                }
+            }
+
+            Map<Integer, Integer> leaseCounts = new HashMap<>();
+            PreparedStatement countStatement = prepare(queries.countRentedPerStudent);
+            countStatement.setArray(1, createIntArray(studentIds));
+            try (ResultSet result = countStatement.executeQuery()) {
+                while (result.next()) {
+                    leaseCounts.put(result.getInt(LEASE_COLUMN_STUDENT_ID), result.getInt(COLUMN_COUNT));
+                }
+            }
+
+            Set<Integer> rentableInstruments = new HashSet<>();
+            PreparedStatement instrumentStatement = prepare(queries.findInstrumentRentedStatus);
+            instrumentStatement.setArray(1, createIntArray(instrumentIds));
+            try (ResultSet result = instrumentStatement.executeQuery()) {
+                while (result.next()) {
+                    if (result.getBoolean(COLUMN_IS_EMPTY)) {
+                        rentableInstruments.add(result.getInt(INSTRUMENT_COLUMN_ID));
+                    }
+                }
+            }
+
+            List<LeaseRequest> allowed = new ArrayList<>();
+            for (LeaseRequest request : pending) {
+                int leaseCount = leaseCounts.getOrDefault(request.getStudentId(), 0);
+                if (!existingStudents.contains(request.getStudentId())) {
+                    request.reject("Student " + request.getStudentId() + " does not exist.");
+                } else if (leaseCount >= MAX_LEASES_PER_STUDENT) {
+                    request.reject("Student cannot have more than " + MAX_LEASES_PER_STUDENT
+                            + " rentals simultaneously.");
+                } else if (!rentableInstruments.remove(request.getInstrumentId())) {
+                    request.reject("Instrument cannot be rented");
+                } else {
+                    leaseCounts.put(request.getStudentId(), leaseCount + 1);
+                    allowed.add(request);
+                }
+            }
+
+            if (!allowed.isEmpty()) {
+                PreparedStatement insertStatement = connection().prepareReturningKeys(INSERT_LEASE_SQL, LEASE_COLUMN_ID);
+                for (LeaseRequest request : allowed) {
+                    insertStatement.setInt(1, request.getStudentId());
+                    insertStatement.setInt(2, request.getInstrumentId());
+                    insertStatement.setString(3, request.getEndDay());
+                    insertStatement.addBatch();
+                }
+                insertStatement.executeBatch();
+                try (ResultSet keys = insertStatement.getGeneratedKeys()) {
+                    for (LeaseRequest request : allowed) {
+                        keys.next();
+                        request.accept(keys.getInt(LEASE_COLUMN_ID));
+                    }
+                }
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+    }
+
+    /**
+     * Terminates the lease by setting the end date to today and removing the rental from the instrument
+     * @return the terminated lease, or null if there is no lease with the specified id
+     **/
+    @Override
+    public Lease updateLeaseEndDate(int leaseId) throws SchoolDBException {
+        String failureMsg = "Could not terminate rental.";
+        Lease terminatedLease = null;
+        try (ResultSet leaseResult = getLeaseTerminationQuery(leaseId).executeQuery()) {
+            if (leaseResult.next()) {
+                terminatedLease = leaseFrom(leaseResult);
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return terminatedLease;
+    }
+
+    /**
+     * Terminates the leases with one statement, and commits once for all of them.
+     *
+     * @return the terminated leases, ids without a lease are left out
+     **/
+    @Override
+    public List<Lease> updateLeaseEndDates(int[] leaseIds) throws SchoolDBException {
+        String failureMsg = "Could not terminate rentals.";
+        List<Lease> terminatedLeases = new ArrayList<>();
+        try {
+            PreparedStatement statement = prepare(TERMINATE_LEASES_SQL);
+            statement.setArray(1, createIntArray(Arrays.stream(leaseIds).boxed().toArray(Integer[]::new)));
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    terminatedLeases.add(leaseFrom(result));
+                }
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return terminatedLeases;
+    }
+
+    /**
+     * Terminates the leases of the student with one statement, which finds them in the
+     * store of leases that have not ended, if it is installed.
+     *
+     * @return the terminated leases
+     **/
+    @Override
+    public List<Lease> updateLeaseEndDatesOfStudent(int studentId) throws SchoolDBException {
+        return updateFoundLeaseEndDates(queries.findUnendedLeaseIdsOfStudent, studentId,
+                "Could not terminate the rentals of the student.");
+    }
+
+    /**
+     * Terminates the leases of the instrument type with one statement, which finds them
+     * in the store of leases that have not ended, if it is installed.
+     *
+     * @return the terminated leases
+     **/
+    @Override
+    public List<Lease> updateLeaseEndDatesOfType(String type) throws SchoolDBException {
+        return updateFoundLeaseEndDates(queries.findUnendedLeaseIdsOfType, type,
+                "Could not terminate the rentals of the instrument type.");
+    }
+
+    /**
+     * Terminates the leases whose ids are found by the specified query, which has one
+     * parameter, with one statement, and commits.
+     */
+    private List<Lease> updateFoundLeaseEndDates(String findLeaseIdsSql, Object parameter, String failureMsg)
+            throws SchoolDBException {
+        List<Lease> terminatedLeases = new ArrayList<>();
+        try {
+            PreparedStatement statement = prepare(String.format(TERMINATE_FOUND_LEASES_SQL, findLeaseIdsSql));
+            statement.setObject(1, parameter);
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    terminatedLeases.add(leaseFrom(result));
+                }
+            }
+            commitTransaction();
+        } catch (SQLException sqlException) {
+            handleException(failureMsg, sqlException);
+        }
+        return terminatedLeases;
+    }
+
+    /**
+     * Commits the current transaction.
+     *
+     * @throws SchoolDBException If unable to commit the current transaction.
+     *                           Will roll back transactions if errored
+     */
+    @Override
+    public void commit() throws SchoolDBException {
+        try {
+            commitTransaction();
+        } catch (SQLException e) {
+            handleException("Failed to commit", e);
+        }
+    }
+
+    /**
+     * Closes all connections to the database. Transactions that are ongoing in other
+     * threads are not affected, their connections are closed when they end.
+     */
+    @Override
+    public void close() {
+        LeaseChangeSubscription subscription = leaseChanges;
+        if (subscription != null) {
+            subscription.close();
+        }
+        connectionPool.close();
+        if (replica != null) {
+            replica.close();
+        }
+    }
+
+    /**
+     * Verifies that the database can be reached, so that a wrong url or password
+     * is reported when the DAO is created rather than at the first command.
+     */
+    private void connectToSchoolDB() throws SQLException {
+        connectionPool.release(connectionPool.borrow(), false);
+    }
+
+    /**
+     * @return The connection of the calling thread's ongoing transaction. A connection
+     * is borrowed from the pool if there is no ongoing transaction.
+     */
+    private PooledConnection connection() throws SQLException {
+        PooledConnection pooledConnection = transactionConnection.get();
+        if (pooledConnection == null) {
+            pooledConnection = connectionPool.borrow();
+            transactionConnection.set(pooledConnection);
+        }
+        return pooledConnection;
+    }
+
+    /**
+     * Starts a transaction on the replica, for a read that may see data that is slightly
+     * out of date, unless there is no usable replica or the calling thread already has an
+     * ongoing transaction, which the read then belongs to.
+     */
+    private void beginReadOfReplica() {
+        if (replica == null || transactionConnection.get() != null) {
+            return;
+        }
+        PooledConnection pooledConnection = replica.borrow();
+        if (pooledConnection != null) {
+            transactionConnection.set(pooledConnection);
+        }
+    }
+
+    /**
+     * @return The cached statement with the specified SQL on the connection of the
+     * calling thread's ongoing transaction.
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        return connection().prepare(sql);
+    }
+
+    /**
+     * Commits the calling thread's ongoing transaction, if any, and returns its
+     * connection to the pool.
+     */
+    private void commitTransaction() throws SQLException {
+        PooledConnection pooledConnection = transactionConnection.get();
+        if (pooledConnection == null) {
+            return;
+        }
+        pooledConnection.getConnection().commit();
+        transactionConnection.remove();
+        pooledConnection.getPool().release(pooledConnection, false);
+    }
+
+    /**
+     * Rolls back the calling thread's ongoing transaction, if any, and returns its
+     * connection to the pool.
+     */
+    private void rollbackTransaction() throws SQLException {
+        PooledConnection pooledConnection = transactionConnection.get();
+        if (pooledConnection == null) {
+            return;
+        }
+        pooledConnection.getConnection().rollback();
+        transactionConnection.remove();
+        pooledConnection.getPool().release(pooledConnection, false);
+    }
+
+    /**
+     * @return The boolean that the specified query finds.
+     */
+    private boolean isTrue(Statement statement, String sql) throws SQLException {
+        try (ResultSet result = statement.executeQuery(sql)) {
+            return result.next() && result.getBoolean(1);
+        }
+    }
+
+    /**
+     * Rolls back the calling thread's ongoing transaction, if any, and returns its
+     * connection to the pool, which closes it if the rollback fails.
+     *
+     * @return Why the rollback failed, or null if it did not.
+     */
+    private String abandonTransaction() {
+        PooledConnection pooledConnection = transactionConnection.get();
+        if (pooledConnection == null) {
+            return null;
+        }
+        transactionConnection.remove();
+        boolean rolledBack = false;
+        try {
+            pooledConnection.getConnection().rollback();
+            rolledBack = true;
+            return null;
+        } catch (SQLException rollbackExc) {
+            return rollbackExc.getMessage();
+        } finally {
+            pooledConnection.getPool().release(pooledConnection, !rolledBack);
+        }
+    }
+
+    /**
+     * Executes the specified statement with <code>EXPLAIN</code>, and adds the statement
+     * followed by its plan, one line per element, to the specified list. The statement
+     * is not cached, since it is rarely executed.
+     */
+    private void explain(List<String> plans, String sql, Object... parameters) throws SQLException {
+        plans.add(sql);
+        try (PreparedStatement statement = connection().getConnection().prepareStatement(EXPLAIN_PREFIX + sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    plans.add("  " + result.getString(1));
+                }
+            }
+        }
+    }
+
+    private PreparedStatement getFindAllRentableInstrumentsQuery(String type) throws SQLException {
+        // Type as specified, if blank then list all instruments
+        if (type.isBlank()) {
+            return prepare(queries.findAllRentableInstruments);
+        }
+        PreparedStatement statement = prepare(queries.findRentableInstrumentsOfType);
+        statement.setString(1, type);
+        return statement;
+    }
+
+    /**
+     * Selects all rented instruments of given instrumentId and studentId
+     * If any argument is null it will not be part of the query
+     */
+    private PreparedStatement getCountRentedInstrumentsQuery(Integer instrumentId, Integer studentId) throws SQLException {
+        PreparedStatement statement;
+        if (instrumentId != null && studentId != null) {
+            statement = prepare(queries.countRentedByInstrumentAndStudent);
+            statement.setInt(1, instrumentId);
+            statement.setInt(2, studentId);
+        } else if (instrumentId != null) {
+            statement = prepare(queries.countRentedByInstrument);
+            statement.setInt(1, instrumentId);
+        } else if (studentId != null) {
+            statement = prepare(queries.countRentedByStudent);
+            statement.setInt(1, studentId);
+        } else {
+            statement = prepare(queries.countRented);
+        }
+        return statement;
+    }
+
+
+    private int getQueryRowCount(PreparedStatement preparedStatement) throws SQLException {
+        try (ResultSet countResult = preparedStatement.executeQuery()) {
+            countResult.next();
+            return countResult.getInt(COLUMN_COUNT);
+        }
+    }
+
+    /**
+     * Locks the leases of the student, or the student, for isolation
+     */
+    private PreparedStatement getLeaseLockQuery(int studentId) throws SQLException {
+        PreparedStatement statement = prepare(queries.lockStudent);
+        statement.setInt(1, studentId);
+        return statement;
+    }
+
+    /**
+     * Creates a lease starting at the current date and ending at the specified end date
+     **/
+    private PreparedStatement getLeaseCreatorQuery(int studentId, int instrumentId, String endDay) throws SQLException {
+        PreparedStatement statement = prepare(CREATE_LEASE_SQL);
+        statement.setInt(1, studentId);
+        statement.setInt(2, instrumentId);
+        statement.setString(3, endDay);
+        return statement;
+    }
+
+    /**
+     * Updates lease to set end_day as current day, meaning terminated
+     *
+     * @return PreparedStatement which can generate a ResultSet containing the terminated lease
+     **/
+    private PreparedStatement getLeaseTerminationQuery(int leaseId) throws SQLException {
+        PreparedStatement statement = prepare(TERMINATE_LEASE_SQL);
+        statement.setInt(1, leaseId);
+        return statement;
+    }
+
+    private Array createIntArray(Integer[] values) throws SQLException {
+        return connection().getConnection().createArrayOf("integer", values);
+    }
+
+    private Instrument instrumentFrom(ResultSet result) throws SQLException {
+        return new Instrument(
+                result.getInt(INSTRUMENT_COLUMN_ID),
+                result.getInt(INSTRUMENT_COLUMN_PRICE),
+                result.getString(INSTRUMENT_COLUMN_TYPE),
+                result.getString(INSTRUMENT_COLUMN_BRAND),
+                result.getString(INSTRUMENT_COLUMN_QUALITY));
+    }
+
+    private Lease leaseFrom(ResultSet result) throws SQLException {
+        return new Lease(
+                result.getInt(LEASE_COLUMN_ID),
+                result.getInt(LEASE_COLUMN_STUDENT_ID),
+                result.getInt(LEASE_COLUMN_INSTRUMENT_ID),
+                result.getDate(LEASE_COLUMN_START_DAY).toLocalDate(),
+                result.getDate(LEASE_COLUMN_END_DAY).toLocalDate());
+    }
+
+    private void handleException(String failureMsg, Exception cause) throws SchoolDBException {
+        String completeFailureMsg = failureMsg;
+        PooledConnection pooledConnection = transactionConnection.get();
+        if (pooledConnection != null && replica != null && replica.owns(pooledConnection)) {
+            replica.failed();
+        }
+        String rollbackFailure = abandonTransaction();
+        if (rollbackFailure != null) {
+            completeFailureMsg = completeFailureMsg +
+                    ". Also failed to rollback transaction because of: " + rollbackFailure;
+        }
+
+        if (cause != null) {
+            throw new SchoolDBException(completeFailureMsg, cause);
+        } else {
+            throw new SchoolDBException(completeFailureMsg);
+        }
+    }
+
+    private void closeResultSet(String failureMsg, ResultSet result) throws SchoolDBException {
+        try {
+            result.close();
+        } catch (Exception e) {
+            throw new SchoolDBException(failureMsg + " Could not close result set.", e);
+        }
+    }
+}
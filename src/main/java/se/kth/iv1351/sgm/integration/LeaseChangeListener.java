@@ -0,0 +1,28 @@
+package se.kth.iv1351.sgm.integration;
+
+import se.kth.iv1351.sgm.model.Lease;
+
+/**
+ * Is told about the leases that other processes create or terminate, see
+ * {@link SchoolDAO#listenForLeaseChanges}. The methods are called from a thread of the
+ * DAO, one change at a time, in the order the changes were committed.
+ */
+public interface LeaseChangeListener {
+    /**
+     * A lease was created by another process.
+     */
+    void leaseCreated(Lease lease);
+
+    /**
+     * A lease was terminated by another process.
+     *
+     * @param lease The lease, with its new end day.
+     */
+    void leaseTerminated(Lease lease);
+
+    /**
+     * Changes may have been missed, for example while the connection to the database
+     * was lost, so whatever is known about the leases must be read again.
+     */
+    void changesMissed();
+}
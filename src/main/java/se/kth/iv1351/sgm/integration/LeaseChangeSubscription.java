@@ -0,0 +1,124 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import se.kth.iv1351.sgm.model.Lease;
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * Receives the notifications that the <code>notify_lease_change</code> trigger sends
+ * when a lease is created or terminated, on a connection of its own that is not part
+ * of the pool, and hands them to a {@link LeaseChangeListener}. Each notification
+ * carries the <code>application_name</code> of the connection that changed the lease,
+ * and those sent by this process are skipped, since it already knows about them.
+ *
+ * Each time the connection is opened, at startup and after it was lost, the listener
+ * is told that changes may have been missed, since changes committed while nobody
+ * listened are not delivered. The received notifications are counted in
+ * the histogram <code>leaseChanges.received</code>, which records how many arrived at
+ * once.
+ */
+class LeaseChangeSubscription {
+    static final String CHANNEL = "lease_changed";
+    private static final String LISTEN_SQL = "LISTEN " + CHANNEL;
+    private static final int POLL_TIMEOUT_MILLIS = 500;
+    private static final long RECONNECT_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final Histogram RECEIVED = Metrics.counts("leaseChanges.received");
+
+    private final String url;
+    private final Properties connectionProperties;
+    private final String ownApplicationName;
+    private final LeaseChangeListener listener;
+    private final Thread receiver;
+    private volatile boolean closed;
+
+    /**
+     * Starts listening on a thread of its own.
+     *
+     * @param ownApplicationName The <code>application_name</code> of the connections of
+     *                           this process, whose notifications are skipped.
+     */
+    LeaseChangeSubscription(String url, Properties connectionProperties, String ownApplicationName,
+                            LeaseChangeListener listener) {
+        this.url = url;
+        this.connectionProperties = connectionProperties;
+        this.ownApplicationName = ownApplicationName;
+        this.listener = listener;
+        this.receiver = new Thread(this::receive, "lease-change-listener");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    void close() {
+        closed = true;
+        receiver.interrupt();
+    }
+
+    private void receive() {
+        while (!closed) {
+            try (Connection connection = DriverManager.getConnection(url, connectionProperties)) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(LISTEN_SQL);
+                }
+                // Changes committed before LISTEN, since startup or while disconnected, were not received
+                listener.changesMissed();
+                PGConnection notifyingConnection = connection.unwrap(PGConnection.class);
+                while (!closed) {
+                    PGNotification[] notifications = notifyingConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications == null || notifications.length == 0) {
+                        continue;
+                    }
+                    RECEIVED.record(notifications.length);
+                    for (PGNotification notification : notifications) {
+                        deliver(notification.getParameter());
+                    }
+                }
+            } catch (SQLException lost) {
+                if (closed) {
+                    return;
+                }
+                System.err.println("Lost the connection receiving lease changes, reconnecting: " + lost.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param payload <code>operation,id,student_id,instrument_id,start_day,end_day,application_name</code>,
+     *                where the operation is <code>INSERT</code> or <code>UPDATE</code>.
+     */
+    private void deliver(String payload) {
+        String[] fields = payload.split(",", 7);
+        if (fields.length == 7 && fields[6].equals(ownApplicationName)) {
+            return;
+        }
+        Lease lease;
+        try {
+            lease = new Lease(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]), LocalDate.parse(fields[4]), LocalDate.parse(fields[5]));
+        } catch (RuntimeException malformed) {
+            System.err.println("Could not read the lease change " + payload + ": " + malformed.getMessage());
+            listener.changesMissed();
+            return;
+        }
+        if (fields[0].equals("INSERT")) {
+            listener.leaseCreated(lease);
+        } else {
+            listener.leaseTerminated(lease);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * Wraps DAOs and JDBC connections in dynamic proxies that record into {@link Metrics}
+ * how long each call takes. A wrapped DAO records each method in the histogram
+ * <code>dao.&lt;method name&gt;</code>. A wrapped connection records each statement
+ * execution in <code>jdbc.execute</code> and each commit and rollback in
+ * <code>jdbc.commit</code> and <code>jdbc.rollback</code>, counts them as round trips,
+ * and logs slow statements with their SQL. Statements created by a wrapped connection
+ * are wrapped as well.
+ */
+public final class MeteringProxies {
+    private MeteringProxies() {
+    }
+
+    /**
+     * @return A DAO that records the latency of each call, and then calls the specified DAO.
+     */
+    public static SchoolDAO metered(SchoolDAO schoolDb) {
+        Map<Method, Histogram> histograms = new ConcurrentHashMap<>();
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return invoke(schoolDb, method, args);
+            }
+            Histogram histogram = histograms.computeIfAbsent(method, m -> Metrics.latency("dao." + m.getName()));
+            long startNanos = System.nanoTime();
+            try {
+                return invoke(schoolDb, method, args);
+            } finally {
+                histogram.recordSince(startNanos);
+            }
+        };
+        return (SchoolDAO) Proxy.newProxyInstance(SchoolDAO.class.getClassLoader(),
+                new Class<?>[]{SchoolDAO.class}, handler);
+    }
+
+    /**
+     * @return A connection that records the latency of statements, commits and
+     * rollbacks, and then calls the specified connection.
+     */
+    static Connection metered(Connection connection) {
+        Histogram commits = Metrics.latency("jdbc.commit");
+        Histogram rollbacks = Metrics.latency("jdbc.rollback");
+        InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "commit":
+                    return invokeRoundTrip(connection, method, args, commits, "COMMIT");
+                case "rollback":
+                    return invokeRoundTrip(connection, method, args, rollbacks, "ROLLBACK");
+                default:
+                    Object result = invoke(connection, method, args);
+                    if (result instanceof Statement) {
+                        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                        return metered((Statement) result, method.getReturnType(), sql);
+                    }
+                    return result;
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, handler);
+    }
+
+    /**
+     * @param type The statement interface to implement.
+     * @param sql  The SQL of a prepared statement, or null if the SQL is given to each execution.
+     */
+    private static Object metered(Statement statement, Class<?> type, String sql) {
+        Histogram executions = Metrics.latency("jdbc.execute");
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (!method.getName().startsWith("execute")) {
+                return invoke(statement, method, args);
+            }
+            String executedSql = sql == null && args != null && args.length > 0 ? String.valueOf(args[0]) : sql;
+            return invokeRoundTrip(statement, method, args, executions, executedSql);
+        };
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object invokeRoundTrip(Object target, Method method, Object[] args, Histogram histogram, String sql)
+            throws Throwable {
+        Metrics.countRoundTrip();
+        long startNanos = System.nanoTime();
+        try {
+            return invoke(target, method, args);
+        } finally {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            histogram.record(elapsedNanos);
+            Metrics.logIfSlow(sql, elapsedNanos);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A physical database connection owned by a {@link ConnectionPool}, together with
+ * the prepared statements that have been created on it. Statements are created the
+ * first time their SQL is used on this connection and then reused, so that the
+ * database server only has to parse and plan each statement once per connection.
+ */
+class PooledConnection {
+    private static final int MAX_CACHED_STATEMENTS = 64;
+    private final Connection connection;
+    private final ConnectionPool pool;
+    private final Map<String, PreparedStatement> statementCache =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= MAX_CACHED_STATEMENTS) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+    private long lastUsedMillis = System.currentTimeMillis();
+    private boolean serializableTransaction;
+
+    PooledConnection(Connection connection, ConnectionPool pool) {
+        this.connection = connection;
+        this.pool = pool;
+    }
+
+    /**
+     * @return The underlying JDBC connection.
+     */
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return The pool that the connection is returned to.
+     */
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the prepared statement for the specified SQL, creating it if this is
+     * the first time the SQL is used on this connection. Parameters that were set
+     * by a previous user of the statement are cleared.
+     *
+     * @param sql The SQL of the statement, with <code>?</code> for all values.
+     * @return The cached statement.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statementCache.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the prepared statement for the specified SQL, which reports the values
+     * of the specified columns as generated keys, also when executed as a batch.
+     *
+     * @param sql        The SQL of the statement, with <code>?</code> for all values.
+     * @param keyColumns The columns whose generated values are returned.
+     * @return The cached statement.
+     */
+    PreparedStatement prepareReturningKeys(String sql, String... keyColumns) throws SQLException {
+        String cacheKey = sql + " -- keys " + String.join(",", keyColumns);
+        PreparedStatement statement = statementCache.get(cacheKey);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql, keyColumns);
+            statementCache.put(cacheKey, statement);
+        } else {
+            statement.clearParameters();
+            statement.clearBatch();
+        }
+        return statement;
+    }
+
+    void markIdle() {
+        lastUsedMillis = System.currentTimeMillis();
+        serializableTransaction = false;
+    }
+
+    /**
+     * Records that the ongoing transaction is serializable, until the connection is
+     * returned to the pool.
+     */
+    void markSerializableTransaction() {
+        serializableTransaction = true;
+    }
+
+    boolean isInSerializableTransaction() {
+        return serializableTransaction;
+    }
+
+    long idleMillis() {
+        return System.currentTimeMillis() - lastUsedMillis;
+    }
+
+    boolean isValid(int timeoutSeconds) {
+        try {
+            return connection.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    boolean isClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    void closeQuietly() {
+        for (PreparedStatement statement : statementCache.values()) {
+            closeQuietly(statement);
+        }
+        statementCache.clear();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // The connection is discarded anyway.
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // The statement is discarded anyway.
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package se.kth.iv1351.sgm.integration;
+
+/**
+ * The SQL of the statements that find out which leases are current, that is which
+ * instruments are rented and how many instruments each student rents. There is one
+ * instance that reads the <code>lease</code> table, whose cost grows with the lease
+ * history, and one that reads the <code>active_lease</code> table, which only holds
+ * leases that have not ended, see {@link JdbcSchoolDAO#installActiveLeaseTable()}.
+ */
+final class RentalQueries {
+    /**
+     * Reads the whole lease history, and locks the lease rows of the students who rent.
+     */
+    static final RentalQueries LEASE_HISTORY = new RentalQueries("lease", "id",
+            "SELECT id FROM lease WHERE student_id = ? FOR UPDATE",
+            "SELECT id FROM lease WHERE student_id = ANY(?) ORDER BY id FOR UPDATE",
+            "SELECT 1 FROM lease WHERE student_id = ? FOR UPDATE", false);
+    /**
+     * Reads the leases that have not ended, and locks the student rows of the students
+     * who rent. A student row is locked even if the student has no leases, and holds
+     * the student's count of leases that have not ended.
+     */
+    static final RentalQueries ACTIVE_LEASES = new RentalQueries("active_lease", "lease_id",
+            "SELECT active_lease_count FROM student WHERE id = ? FOR NO KEY UPDATE",
+            "SELECT id FROM student WHERE id = ANY(?) ORDER BY id FOR NO KEY UPDATE",
+            "SELECT 1 FROM student WHERE id = ? FOR NO KEY UPDATE", true);
+
+    private static final String IS_CURRENT = "(CURRENT_DATE >= l.start_day AND CURRENT_DATE < l.end_day)";
+
+    final String findAllRentableInstruments;
+    final String findRentableInstrumentsOfType;
+    // One page of rentable instruments, ordered on id so that the next page starts after the last id of this one
+    final String findRentableInstrumentsPage;
+    final String findRentableInstrumentsOfTypePage;
+    final String countRented;
+    final String countRentedByInstrument;
+    final String countRentedByStudent;
+    final String countRentedByInstrumentAndStudent;
+    final String countRentedPerStudent;
+    final String findInstrumentRentedStatus;
+    // Leases that are ongoing or start in the future, ended leases are history
+    final String findUnendedLeases;
+    // The ids of the leases that have not ended of a student, and of the instruments of a type
+    final String findUnendedLeaseIdsOfStudent;
+    final String findUnendedLeaseIdsOfType;
+    // Since the leases of a student should not be counted by other transactions at the same time,
+    // the student is locked first. Otherwise a student may be able to end up with more than allowed rentals.
+    final String lockStudent;
+    // Locks all students in a bulk rental, in id order so that two concurrent bulk rentals can not
+    // deadlock each other.
+    final String lockStudents;
+    // Performs the whole rent transaction on the server: locks the student, checks the lease limit
+    // and the instrument, and inserts the lease. Each statement in the function sees rows committed
+    // by others while it waited for the lock.
+    final String createLeaseFunction;
+    // The statements of createLeaseFunction that lock the student, count the student's leases and find
+    // out if the instrument is rented, with the student or instrument id as the only parameter, so that
+    // their plans can be explained. The function executes them with its own parameters.
+    final String lockStudentInFunction;
+    final String countRentedByStudentInFunction;
+    final String findRentedInstrumentInFunction;
+    // true if the first column of lockStudent is the number of leases of the student that have not ended
+    final boolean lockReadsUnendedLeaseCount;
+
+    private RentalQueries(String leaseTable, String leaseIdColumn, String lockStudent, String lockStudents,
+                          String lockStudentInFunction, boolean lockReadsUnendedLeaseCount) {
+        String rentableInstruments =
+                "SELECT DISTINCT id, price, brand, quality, type FROM rentable_instrument " +
+                        // r.id should not be in the set of rented instrument ids
+                        "WHERE id NOT IN (" +
+                        "   SELECT DISTINCT instrument_id as id FROM " + leaseTable + " AS l " +
+                        "   WHERE " + IS_CURRENT +
+                        ")";
+        this.findAllRentableInstruments = rentableInstruments;
+        this.findRentableInstrumentsOfType = rentableInstruments + " AND type = ?";
+        this.findRentableInstrumentsPage = rentableInstruments + " AND id > ? ORDER BY id LIMIT ?";
+        this.findRentableInstrumentsOfTypePage = findRentableInstrumentsOfType + " AND id > ? ORDER BY id LIMIT ?";
+        this.countRented =
+                "SELECT COUNT(*), COUNT(*)=0 as is_empty FROM rentable_instrument AS r " +
+                        "JOIN " + leaseTable + " AS l ON r.id=instrument_id " +
+                        // If current date is higher than start day and lower than end day --> Currently rented
+                        "WHERE " + IS_CURRENT;
+        this.countRentedByInstrument = countRented + " AND r.id = ?";
+        this.countRentedByStudent = countRented + " AND student_id = ?";
+        this.countRentedByInstrumentAndStudent = countRentedByInstrument + " AND student_id = ?";
+        this.countRentedPerStudent =
+                "SELECT student_id, COUNT(*) FROM rentable_instrument AS r " +
+                        "JOIN " + leaseTable + " AS l ON r.id=instrument_id " +
+                        "WHERE " + IS_CURRENT + " " +
+                        "AND student_id = ANY(?) " +
+                        "GROUP BY student_id";
+        this.findInstrumentRentedStatus =
+                "SELECT r.id, COUNT(l.instrument_id)=0 as is_empty FROM rentable_instrument AS r " +
+                        "LEFT JOIN " + leaseTable + " AS l ON r.id=l.instrument_id " +
+                        "AND " + IS_CURRENT + " " +
+                        "WHERE r.id = ANY(?) " +
+                        "GROUP BY r.id";
+        this.findUnendedLeases =
+                "SELECT " + leaseIdColumn + " AS id, student_id, instrument_id, start_day, end_day " +
+                        "FROM " + leaseTable + " WHERE end_day > CURRENT_DATE";
+        this.findUnendedLeaseIdsOfStudent =
+                "SELECT " + leaseIdColumn + " FROM " + leaseTable + " WHERE student_id = ? AND end_day > CURRENT_DATE";
+        this.findUnendedLeaseIdsOfType =
+                "SELECT l." + leaseIdColumn + " FROM " + leaseTable + " AS l " +
+                        "JOIN rentable_instrument AS r ON r.id = l.instrument_id " +
+                        "WHERE r.type = ? AND l.end_day > CURRENT_DATE";
+        this.lockStudent = lockStudent;
+        this.lockStudents = lockStudents;
+        this.lockStudentInFunction = lockStudentInFunction;
+        this.countRentedByStudentInFunction =
+                "SELECT COUNT(*) FROM rentable_instrument AS r " +
+                        "JOIN " + leaseTable + " AS l ON r.id = l.instrument_id " +
+                        "WHERE " + IS_CURRENT + " " +
+                        "AND l.student_id = ?";
+        this.findRentedInstrumentInFunction =
+                "SELECT 1 FROM rentable_instrument AS r " +
+                        "JOIN " + leaseTable + " AS l ON r.id = l.instrument_id " +
+                        "WHERE " + IS_CURRENT + " " +
+                        "AND r.id = ?";
+        this.createLeaseFunction =
+                "CREATE OR REPLACE FUNCTION create_lease_if_allowed(" +
+                        "p_student_id INT, p_instrument_id INT, p_end_day DATE) RETURNS INT AS $$ " +
+                        "DECLARE " +
+                        "    v_lease_count INT; " +
+                        "    v_lease_id INT; " +
+                        "BEGIN " +
+                        "    PERFORM" + lockStudentInFunction.substring("SELECT".length())
+                                .replace("?", "p_student_id") + "; " +
+                        "    " + countRentedByStudentInFunction.replace("SELECT COUNT(*)", "SELECT COUNT(*) INTO v_lease_count")
+                                .replace("?", "p_student_id") + "; " +
+                        "    IF v_lease_count >= " + SchoolDAO.MAX_LEASES_PER_STUDENT + " THEN " +
+                        "        RETURN " + SchoolDAO.LEASE_LIMIT_REACHED + "; " +
+                        "    END IF; " +
+                        "    IF EXISTS (" + findRentedInstrumentInFunction.replace("?", "p_instrument_id") + ") THEN " +
+                        "        RETURN " + SchoolDAO.INSTRUMENT_NOT_RENTABLE + "; " +
+                        "    END IF; " +
+                        "    INSERT INTO lease(student_id, instrument_id, start_day, end_day) " +
+                        "        VALUES (p_student_id, p_instrument_id, CURRENT_DATE, p_end_day) " +
+                        "        RETURNING id INTO v_lease_id; " +
+                        "    RETURN v_lease_id; " +
+                        "END; " +
+                        "$$ LANGUAGE plpgsql";
+        this.lockReadsUnendedLeaseCount = lockReadsUnendedLeaseCount;
+    }
+}
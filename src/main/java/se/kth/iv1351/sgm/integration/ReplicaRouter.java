@@ -0,0 +1,135 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * Hands out connections to a read-only replica of the database, for reads that may
+ * see data that is slightly out of date, as long as the replica is reachable and not
+ * lagging too far behind the primary. Otherwise no connection is handed out, and the
+ * read goes to the primary.
+ *
+ * The lag is measured at most once per check interval, by the one thread that happens
+ * to read when the last measurement has become too old, while other threads route by
+ * the last measurement. A replica that can not be reached, or that fails a read, is not
+ * used again until the next measurement. A database that is not a standby has no lag.
+ *
+ * The routed reads are counted in the histograms <code>replica.reads</code> and
+ * <code>replica.fallbacks</code>, which record the last measured lag in milliseconds,
+ * or zero if the replica could not be reached. Each measurement is recorded in
+ * <code>replica.lagMillis</code>.
+ */
+class ReplicaRouter {
+    private static final String FIND_LAG_MILLIS_SQL =
+            "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+                    "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+    private static final Histogram REPLICA_READS = Metrics.counts("replica.reads");
+    private static final Histogram PRIMARY_FALLBACKS = Metrics.counts("replica.fallbacks");
+    private static final Histogram LAG_MILLIS = Metrics.counts("replica.lagMillis");
+
+    private final ConnectionPool pool;
+    private final long maxLagMillis;
+    private final long checkIntervalMillis;
+    private final ReentrantLock checkLock = new ReentrantLock();
+    private volatile long checkedAtMillis;
+    // The last measured lag, or -1 if the replica could not be reached
+    private volatile long lagMillis = -1;
+
+    /**
+     * @param pool                A pool of read-only connections to the replica.
+     * @param maxLagMillis        A replica lagging further behind than this is not used.
+     * @param checkIntervalMillis How often the lag is measured.
+     */
+    ReplicaRouter(ConnectionPool pool, long maxLagMillis, long checkIntervalMillis) {
+        this.pool = pool;
+        this.maxLagMillis = maxLagMillis;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Measures the lag of the replica, if nobody else is measuring it.
+     *
+     * @return true if the replica is used for reads.
+     */
+    boolean checkLag() {
+        if (!checkLock.tryLock()) {
+            return isUsable();
+        }
+        try {
+            long wasLagMillis = lagMillis;
+            try {
+                PooledConnection connection = pool.borrow();
+                boolean broken = true;
+                try (ResultSet result = connection.prepare(FIND_LAG_MILLIS_SQL).executeQuery()) {
+                    result.next();
+                    lagMillis = Math.max(0, result.getLong(1));
+                    connection.getConnection().commit();
+                    broken = false;
+                } finally {
+                    pool.release(connection, broken);
+                }
+                LAG_MILLIS.record(lagMillis);
+            } catch (SQLException unreachable) {
+                lagMillis = -1;
+            }
+            checkedAtMillis = System.currentTimeMillis();
+            if (isUsable() != (wasLagMillis >= 0 && wasLagMillis <= maxLagMillis)) {
+                System.out.println(isUsable() ? "Reading from the replica."
+                        : lagMillis < 0 ? "Could not reach the replica, reading from the primary."
+                        : "The replica lags " + lagMillis + " ms behind, reading from the primary.");
+            }
+            return isUsable();
+        } finally {
+            checkLock.unlock();
+        }
+    }
+
+    /**
+     * @return A connection to the replica, or null if the read must go to the primary.
+     */
+    PooledConnection borrow() {
+        if (System.currentTimeMillis() - checkedAtMillis > checkIntervalMillis) {
+            checkLag();
+        }
+        long routedLagMillis = lagMillis;
+        if (isUsable()) {
+            try {
+                PooledConnection connection = pool.borrow();
+                REPLICA_READS.record(routedLagMillis);
+                return connection;
+            } catch (SQLException unreachable) {
+                failed();
+            }
+        }
+        PRIMARY_FALLBACKS.record(Math.max(routedLagMillis, 0));
+        return null;
+    }
+
+    /**
+     * Stops using the replica until the lag has been measured again, since a read from
+     * it failed.
+     */
+    void failed() {
+        lagMillis = -1;
+    }
+
+    /**
+     * @return true if the specified connection was borrowed from the replica.
+     */
+    boolean owns(PooledConnection connection) {
+        return connection.getPool() == pool;
+    }
+
+    void close() {
+        pool.close();
+    }
+
+    private boolean isUsable() {
+        long lag = lagMillis;
+        return lag >= 0 && lag <= maxLagMillis;
+    }
+}
@@ -0,0 +1,129 @@
+package se.kth.iv1351.sgm.integration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the indexes that the queries of {@link JdbcSchoolDAO} rely on, and finds
+ * out which of them are missing. Indexes are created concurrently, so that leases
+ * can still be changed while an index is built on a large table, and are known by
+ * name only, an equivalent index with another name is not recognized.
+ *
+ * No index is partial, since the queries find current leases by comparing with
+ * <code>CURRENT_DATE</code>, which can not be part of an index predicate. The
+ * <code>active_lease</code> table serves that purpose instead.
+ */
+class SchemaBootstrap {
+    private static final Index[] INDEXES = {
+            // Locking and counting the leases of a student
+            new Index("lease_student_id_idx", "lease", "(student_id)"),
+            // Finding out whether an instrument is rented, without reading the lease rows
+            new Index("lease_instrument_id_days_idx", "lease", "(instrument_id, start_day, end_day)"),
+            // Reading the leases that have not ended, and rebuilding active_lease, without reading the lease rows
+            new Index("lease_end_day_idx", "lease", "(end_day) INCLUDE (id, student_id, instrument_id, start_day)"),
+            // Listing the instruments of a type in id order, without reading the instrument rows
+            new Index("rentable_instrument_type_id_idx", "rentable_instrument",
+                    "(type, id) INCLUDE (price, brand, quality)"),
+            // Searching by price, or on id and price within a type, and paging on (price, id)
+            new Index("rentable_instrument_price_id_idx", "rentable_instrument",
+                    "(price, id) INCLUDE (type, brand, quality)"),
+            new Index("rentable_instrument_type_price_id_idx", "rentable_instrument",
+                    "(type, price, id) INCLUDE (brand, quality)"),
+            // Finding out whether an instrument is rented, when current leases are read from active_lease
+            new Index("active_lease_instrument_id_days_idx", "active_lease", "(instrument_id, start_day, end_day)"),
+    };
+    private static final String FIND_TABLE_SQL = "SELECT to_regclass(CAST(? AS TEXT)) IS NOT NULL";
+    private static final String FIND_VALID_INDEX_SQL =
+            "SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass(CAST(? AS TEXT))";
+
+    private final Connection connection;
+
+    /**
+     * @param connection A connection in auto commit mode, since indexes can not be
+     *                   created concurrently inside a transaction.
+     */
+    SchemaBootstrap(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Creates the indexes that do not exist, on the tables that exist. An index that
+     * can not be created, for example because the database user does not own the
+     * table, is reported as missing.
+     *
+     * @param create false to only find out which indexes are missing.
+     * @return A description of each missing index.
+     */
+    List<String> installIndexes(boolean create) throws SQLException {
+        List<String> missing = new ArrayList<>();
+        for (Index index : INDEXES) {
+            if (!tableExists(index.table)) {
+                continue;
+            }
+            Boolean valid = isValid(index.name);
+            if (valid == null && create) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(index.createSql());
+                } catch (SQLException createFailed) {
+                    missing.add(index.describe() + ", could not be created: " + createFailed.getMessage());
+                    continue;
+                }
+                valid = isValid(index.name);
+            }
+            if (valid == null) {
+                missing.add(index.describe());
+            } else if (!valid) {
+                // A concurrent build that failed leaves an index that is kept up to date but never used
+                missing.add(index.describe() + ", exists but is invalid and must be dropped and created again");
+            }
+        }
+        return missing;
+    }
+
+    private boolean tableExists(String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(FIND_TABLE_SQL)) {
+            statement.setString(1, table);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() && result.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * @return null if there is no index with the specified name, otherwise whether it
+     * is valid, that is usable by queries.
+     */
+    private Boolean isValid(String indexName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(FIND_VALID_INDEX_SQL)) {
+            statement.setString(1, indexName);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getBoolean(1) : null;
+            }
+        }
+    }
+
+    private static class Index {
+        private final String name;
+        private final String table;
+        private final String definition;
+
+        Index(String name, String table, String definition) {
+            this.name = name;
+            this.table = table;
+            this.definition = definition;
+        }
+
+        String createSql() {
+            return "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + table + " " + definition;
+        }
+
+        String describe() {
+            return "Index " + name + " on " + table + " " + definition;
+        }
+    }
+}
@@ -1,271 +1,235 @@
-/*
- * The MIT License (MIT)
- * Copyright (c) 2020 Leif Lindbäck
- *
- * Permission is hereby granted, free of charge, to any person obtaining a copy
- * of this software and associated documentation files (the "Software"), to deal
- * in the Software without restriction,including without limitation the rights
- * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
- * copies of the Software, and to permit persons to whom the Software is
- * furnished to do so,subject to the following conditions:
- *
- * The above copyright notice and this permission notice shall be included in
- * all copies or substantial portions of the Software.
- *
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
- * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
- * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
- * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
- * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
- * THE SOFTWARE.
- */
-
 package se.kth.iv1351.sgm.integration;
 
-import java.sql.*;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import se.kth.iv1351.sgm.model.Instrument;
+import se.kth.iv1351.sgm.model.InstrumentDTO;
+import se.kth.iv1351.sgm.model.InstrumentSearch;
+import se.kth.iv1351.sgm.model.Lease;
+import se.kth.iv1351.sgm.model.LeaseRequest;
 
 /**
- * This data access object (DAO) encapsulates all database calls in the school
- * application. No code outside this class shall have any knowledge about the
- * database.
+ * The data access object (DAO) contract of the school application. All data is read
+ * and stored through this interface, no code outside the implementations shall have
+ * any knowledge about how it is stored.
+ *
+ * A transaction belongs to the calling thread. It starts with the first call in that
+ * thread and ends with a call that commits, which are the calls creating or
+ * terminating leases, the read calls that do not lock, and {@link #commit()}.
+ * A failing call rolls back the transaction.
  */
-public class SchoolDAO {
-    private static final String INSTRUMENT_COLUMN_ID = "id";
-    private static final String INSTRUMENT_COLUMN_PRICE = "price";
-    private static final String INSTRUMENT_COLUMN_BRAND = "brand";
-    private static final String INSTRUMENT_COLUMN_QUALITY = "quality";
-    private static final String INSTRUMENT_COLUMN_TYPE = "type";
-    private static final String COLUMN_COUNT = "count";
-    private static final String COLUMN_IS_EMPTY = "is_empty";
-    private static final String LEASE_COLUMN_ID = "id";
-    private static final String LEASE_COLUMN_STUDENT_ID = "student_id";
-    private static final String LEASE_COLUMN_INSTRUMENT_ID = "instrument_id";
+public interface SchoolDAO {
+    /**
+     * The greatest number of active leases a student may have.
+     */
+    public static final int MAX_LEASES_PER_STUDENT = 2;
+    /**
+     * Returned by {@link #createLeaseIfAllowed} if the student already has the maximum number of leases.
+     */
+    public static final int LEASE_LIMIT_REACHED = -1;
+    /**
+     * Returned by {@link #createLeaseIfAllowed} if the instrument is currently rented.
+     */
+    public static final int INSTRUMENT_NOT_RENTABLE = -2;
 
-    private Connection connection;
+    /**
+     * @return A list of all rentable_instruments (not currently leased)
+     */
+    public List<Instrument> readRentableInstruments(String type) throws SchoolDBException;
 
     /**
-     * Constructs a new DAO object connected to the bank database.
+     * Streams the rentable_instruments (not currently leased) with an id higher than the
+     * specified id, in id order.
+     *
+     * @param type     The instrument type, or a blank string for all types.
+     * @param afterId  Only instruments with a higher id are read, zero to start from the first.
+     * @param limit    The maximum number of instruments to read.
+     * @param consumer Called once for each instrument.
+     * @return The number of instruments handed to the consumer
      */
-    public SchoolDAO() throws SchoolDBException {
-        try {
-            connectToSchoolDB();
-        } catch (ClassNotFoundException | SQLException exception) {
-            throw new SchoolDBException("Could not connect to datasource.", exception);
-        }
-    }
+    public int readRentableInstruments(String type, int afterId, int limit,
+                                       Consumer<? super InstrumentDTO> consumer) throws SchoolDBException;
 
     /**
-     * @return A list of all rentable_instruments (not currently leased)
+     * Streams the rentable_instruments (not currently leased) that meet the conditions
+     * of the search, in the order of the search, starting after the instrument that the
+     * search continues after.
+     *
+     * @param search   The conditions, order and starting point.
+     * @param limit    The maximum number of instruments to read.
+     * @param consumer Called once for each instrument.
+     * @return The number of instruments handed to the consumer
      */
-    public List<Instrument> readRentableInstruments(String type) throws SchoolDBException {
-        String failureMsg = "Could not list instruments.";
-        List<Instrument> instruments = new ArrayList<>();
-        try (ResultSet result = getFindAllRentableInstrumentsQuery(type).executeQuery()) {
-            while (result.next()) {
-                instruments.add(new Instrument(
-                        result.getInt(INSTRUMENT_COLUMN_ID),
-                        result.getInt(INSTRUMENT_COLUMN_PRICE),
-                        result.getString(INSTRUMENT_COLUMN_TYPE),
-                        result.getString(INSTRUMENT_COLUMN_BRAND),
-                        result.getString(INSTRUMENT_COLUMN_QUALITY)));
-            }
-            connection.commit();
-        } catch (SQLException sqlException) {
-            handleException(failureMsg, sqlException);
-        }
-        return instruments;
-    }
+    public int searchRentableInstruments(InstrumentSearch search, int limit,
+                                         Consumer<? super InstrumentDTO> consumer) throws SchoolDBException;
 
     /**
-     * Reads number of leases a student with given student_id has
+     * @return All rentable_instruments, whether they are leased or not
+     */
+    public List<Instrument> readAllInstruments() throws SchoolDBException;
+
+    /**
+     * @return All leases that have not yet ended, including those starting in the future
+     */
+    public List<Lease> readUnendedLeases() throws SchoolDBException;
+
+    /**
+     * @return The ids of all students, in no particular order
+     */
+    public int[] readStudentIds() throws SchoolDBException;
+
+    /**
+     * Reads number of leases a student with given student_id has, and locks the
+     * student's leases until the transaction ends, unless the transaction is
+     * serializable, see {@link #beginSerializableTransaction()}
      **/
-    public int readStudentLeaseCount(int studentId) throws SchoolDBException {
-        String failureMsg = "Could not get student lease count.";
-        int count = 0;
-        try {
-            getLeaseLockQuery(studentId).execute();
-            PreparedStatement statement = getCountRentedInstrumentsQuery(null, studentId);
-            count = getQueryRowCount(statement);
-        } catch (SQLException sqlException) {
-            handleException(failureMsg, sqlException);
-        }
-        return count;
-    }
+    public int readStudentLeaseCount(int studentId) throws SchoolDBException;
+
+    /**
+     * Starts a transaction with the isolation level serializable in the calling thread.
+     * Such a transaction takes no locks when reading, instead it fails with a
+     * {@link SchoolDBException} that {@link SchoolDBException#isRetryable() is retryable}
+     * if it conflicts with a concurrent transaction. Must be called before any other
+     * call in the transaction.
+     */
+    public void beginSerializableTransaction() throws SchoolDBException;
 
     /**
      * @return true if the instrument itself is not currently rented
      **/
-    public boolean readCanRentInstrument(int instrumentId) throws SchoolDBException {
-        String failureMsg = "Could not read instrument rented status.";
-        boolean canRentInstrument = false;
-        try (ResultSet rentedInstrumentsResults = getCountRentedInstrumentsQuery(instrumentId, null).executeQuery()) {
-            rentedInstrumentsResults.next();
-            canRentInstrument = rentedInstrumentsResults.getBoolean(COLUMN_IS_EMPTY);
-        } catch (SQLException sqlException) {
-            handleException(failureMsg, sqlException);
-        }
-        return canRentInstrument;
-    }
+    public boolean readCanRentInstrument(int instrumentId) throws SchoolDBException;
 
     /**
-     * Creates lease
+     * Creates lease, and commits
+     *
+     * @return The id of the created lease
      */
-    public int createLease(int studentId, int instrumentId, String endDay) throws SchoolDBException {
-        String failureMsg = "Could not add lease.";
-        int lease_id = 0;
-        try (ResultSet leaseResult = getLeaseCreatorQuery(studentId, instrumentId, endDay).executeQuery()) {
-            leaseResult.next();
-            lease_id = leaseResult.getInt("id");
-            connection.commit();
-        } catch (SQLException sqlException) {
-            handleException(failureMsg, sqlException);
-        }
-        return lease_id;
-    }
+    public int createLease(int studentId, int instrumentId, String endDay) throws SchoolDBException;
 
     /**
-     * Terminates the lease by setting the end date to today and removing the rental from the instrument
-     * @return updated rows
-     **/
-    public int updateLeaseEndDate(int leaseId) throws SchoolDBException {
-        String failureMsg = "Could not terminate rental.";
-        int updatedRows = 0;
-        try {
-            updatedRows = getLeaseTerminationQuery(leaseId).executeUpdate();
-            connection.commit();
-        } catch (SQLException sqlException) {
-            handleException(failureMsg, sqlException);
-        }
-        return updatedRows;
-    }
+     * Creates the indexes that the queries need, unless they exist, and commits.
+     *
+     * @param create false to only find out which indexes are missing
+     * @return A description of each needed index that is missing
+     */
+    public List<String> installIndexes(boolean create) throws SchoolDBException;
 
     /**
-     * Commits the current transaction.
+     * Executes the statements that list the first instruments of the specified type,
+     * a blank string for all types, with their plans explained, and rolls back.
      *
-     * @throws SchoolDBException If unable to commit the current transaction.
-     *                           Will roll back transactions if errored
+     * @return Each statement followed by its plan, one line per element
      */
-    public void commit() throws SchoolDBException {
-        try {
-            connection.commit();
-        } catch (SQLException e) {
-            handleException("Failed to commit", e);
-        }
-    }
+    public List<String> explainListing(String type, int limit) throws SchoolDBException;
 
-    private void connectToSchoolDB() throws ClassNotFoundException, SQLException {
-        connection = DriverManager.getConnection("jdbc:postgresql://localhost:5432/sgm",
-                "postgres", "post");
-        connection.setAutoCommit(false);
-    }
+    /**
+     * Executes the statements that create a lease with their plans explained, either
+     * with separate statements or in one call, and rolls back. In a serializable
+     * transaction, see {@link #beginSerializableTransaction()}, the separate statements
+     * are those that read without locking. In one call, the statements that
+     * {@link #createLeaseIfAllowed} executes are explained one by one, rather than the
+     * call itself, whose plan does not show them.
+     *
+     * @return Each statement followed by its plan, one line per element
+     */
+    public List<String> explainRent(int studentId, int instrumentId, String endDay, boolean inOneCall)
+            throws SchoolDBException;
 
-    private PreparedStatement getFindAllRentableInstrumentsQuery(String type) throws SQLException {
-        return connection.prepareStatement(
-                "SELECT DISTINCT " + INSTRUMENT_COLUMN_ID + ", " + INSTRUMENT_COLUMN_PRICE + ", " +
-                        INSTRUMENT_COLUMN_BRAND + ", " + INSTRUMENT_COLUMN_QUALITY + ", " + INSTRUMENT_COLUMN_TYPE + " " +
-                        "FROM rentable_instrument " +
-                        // r.id should not be in the set of rented instrument ids
-                        "WHERE id NOT IN (" +
-                        "   SELECT DISTINCT instrument_id as id FROM lease " +
-                        "   WHERE (CURRENT_DATE >= start_day AND CURRENT_DATE < end_day) " +
-                        ")" +
-                        // Type as specified, if blank then list all instruments
-                        (type.isBlank() ? "" : ("AND " + INSTRUMENT_COLUMN_TYPE + " = '" + type + "'"))
-        );
-    }
+    /**
+     * Executes the statement that terminates a lease with its plan explained, and rolls back.
+     *
+     * @return The statement followed by its plan, one line per element
+     */
+    public List<String> explainTermination(int leaseId) throws SchoolDBException;
+
+    /**
+     * Prepares a store of the leases that have not ended, which is kept up to date as
+     * leases change, so that finding current leases does not read the lease history.
+     * Called once at startup, before {@link #installCreateLeaseFunction}.
+     */
+    public void installActiveLeaseTable() throws SchoolDBException;
 
     /**
-     * Selects all rented instruments of given instrumentId and studentId
-     * If any argument is null it will not be part of the query
+     * Removes the leases that have ended from the store of leases that have not ended,
+     * and commits. Meant to be called once a day.
+     *
+     * @return The number of removed leases
      */
-    private PreparedStatement getCountRentedInstrumentsQuery(Integer instrumentId, Integer studentId) throws SQLException {
-        StringBuilder sb = new StringBuilder("SELECT COUNT(*), COUNT(*)=0 as " + COLUMN_IS_EMPTY + " FROM rentable_instrument AS r " +
-                "JOIN lease AS l ON r.id=instrument_id " +
-                // If current date is higher than start day and lower than end day --> Currently rented
-                "WHERE (CURRENT_DATE >= l.start_day AND CURRENT_DATE < l.end_day)");
-        if (instrumentId != null) {
-            sb.append(" AND r.");
-            sb.append(INSTRUMENT_COLUMN_ID);
-            sb.append(" = ");
-            sb.append(instrumentId);
-        }
-        if (studentId != null) {
-            sb.append(" AND ");
-            sb.append(LEASE_COLUMN_STUDENT_ID);
-            sb.append(" = ");
-            sb.append(studentId);
-        }
-        return connection.prepareStatement(sb.toString());
-    }
+    public int retireEndedLeases() throws SchoolDBException;
 
+    /**
+     * Prepares whatever {@link #createLeaseIfAllowed} needs, called once at startup.
+     */
+    public void installCreateLeaseFunction() throws SchoolDBException;
 
-    private int getQueryRowCount(PreparedStatement preparedStatement) throws SQLException {
-        ResultSet countResult = preparedStatement.executeQuery();
-        countResult.next();
-        return countResult.getInt(COLUMN_COUNT);
-    }
+    /**
+     * Creates a lease if the student is below the lease limit and the instrument is
+     * not rented, as one atomic operation.
+     *
+     * @return The id of the created lease, or {@link #LEASE_LIMIT_REACHED} or
+     * {@link #INSTRUMENT_NOT_RENTABLE} if the lease is not allowed.
+     */
+    public int createLeaseIfAllowed(int studentId, int instrumentId, String endDay) throws SchoolDBException;
 
     /**
-     * Locks leases for isolation
+     * Creates the requested leases that are allowed, in one transaction. Requests that
+     * would exceed the lease limit, that name an unknown student, or that name an
+     * instrument that is rented or requested by an earlier request are rejected. If the
+     * call fails no lease is created and the outcomes must be discarded.
+     *
+     * @param requests The leases to create. Requests that are already rejected are skipped.
      */
-    private PreparedStatement getLeaseLockQuery(int studentId) throws SQLException {
-        return connection.prepareStatement(
-                // Since the lease rows for this student should not be accessed by
-                // other queries at the same time a SELECT FOR UPDATE is used.
-                // If the leases were not locked then a student may be able to end up with more than allowed rentals.
-                "SELECT * FROM lease WHERE student_id = '" + studentId + "' FOR UPDATE");
-    }
+    public void createLeases(List<LeaseRequest> requests) throws SchoolDBException;
+
+    /**
+     * Terminates the lease by setting the end date to today, and commits
+     *
+     * @return the terminated lease, or null if there is no lease with the specified id
+     **/
+    public Lease updateLeaseEndDate(int leaseId) throws SchoolDBException;
 
     /**
-     * Creates a lease starting at the current date and ending at the specified end date
+     * Terminates the leases with the specified ids in one transaction, by setting their
+     * end dates to today, and commits.
+     *
+     * @return the terminated leases, ids without a lease are left out
      **/
-    private PreparedStatement getLeaseCreatorQuery(int studentId, int instrumentId, String endDay) throws SQLException {
-        return connection.prepareStatement(
-                "INSERT INTO lease(student_id, instrument_id, start_day, end_day) " +
-                        "VALUES " +
-                        "(" + studentId + ", " + instrumentId + ", " + "CURRENT_DATE" + ", '" + endDay + "') " +
-                        "RETURNING id");
-    }
+    public List<Lease> updateLeaseEndDates(int[] leaseIds) throws SchoolDBException;
 
     /**
-     * Updates lease to set end_day as current day, meaning terminated
+     * Terminates all leases of the student that have not ended, in one transaction,
+     * and commits.
      *
-     * @return PreparedStatement which can generate a ResultSet containing instrument id
+     * @return the terminated leases
      **/
-    private PreparedStatement getLeaseTerminationQuery(int leaseId) throws SQLException {
-        return connection.prepareStatement(
-                "UPDATE lease " +
-                        "SET end_day = CURRENT_DATE " +
-                        "WHERE id = " + leaseId
-        );
-    }
+    public List<Lease> updateLeaseEndDatesOfStudent(int studentId) throws SchoolDBException;
 
-    private void handleException(String failureMsg, Exception cause) throws SchoolDBException {
-        String completeFailureMsg = failureMsg;
-        try {
-            connection.rollback();
-        } catch (SQLException rollbackExc) {
-            completeFailureMsg = completeFailureMsg +
-                    ". Also failed to rollback transaction because of: " + rollbackExc.getMessage();
-        }
+    /**
+     * Terminates all leases of instruments of the specified type that have not ended,
+     * in one transaction, and commits.
+     *
+     * @return the terminated leases
+     **/
+    public List<Lease> updateLeaseEndDatesOfType(String type) throws SchoolDBException;
+
+    /**
+     * Tells the listener about the leases that other processes create or terminate,
+     * until this DAO is closed, so that data cached from the database can be kept up
+     * to date. Called once at startup.
+     */
+    public void listenForLeaseChanges(LeaseChangeListener listener) throws SchoolDBException;
 
-        if (cause != null) {
-            throw new SchoolDBException(completeFailureMsg, cause);
-        } else {
-            throw new SchoolDBException(completeFailureMsg);
-        }
-    }
+    /**
+     * Commits the current transaction.
+     *
+     * @throws SchoolDBException If unable to commit the current transaction.
+     *                           Will roll back transactions if errored
+     */
+    public void commit() throws SchoolDBException;
 
-    private void closeResultSet(String failureMsg, ResultSet result) throws SchoolDBException {
-        try {
-            result.close();
-        } catch (Exception e) {
-            throw new SchoolDBException(failureMsg + " Could not close result set.", e);
-        }
-    }
+    /**
+     * Releases all resources held by this DAO.
+     */
+    public void close();
 }
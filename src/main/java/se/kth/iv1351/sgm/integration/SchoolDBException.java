@@ -23,10 +23,14 @@
 
 package se.kth.iv1351.sgm.integration;
 
+import java.sql.SQLException;
+
 /**
  * Thrown when a call to the bank database fails.
  */
 public class SchoolDBException extends Exception {
+    private static final String SERIALIZATION_FAILURE_SQL_STATE = "40001";
+    private static final String DEADLOCK_SQL_STATE = "40P01";
 
     /**
      * Create a new instance thrown because of the specified reason.
@@ -46,4 +50,19 @@ public class SchoolDBException extends Exception {
     public SchoolDBException(String reason, Throwable rootCause) {
         super(reason, rootCause);
     }
+
+    /**
+     * @return true if the call failed because its transaction conflicted with a concurrent
+     * transaction, either a serialization failure or a deadlock. The transaction has then
+     * been rolled back, and may succeed if it is performed again.
+     */
+    public boolean isRetryable() {
+        for (Throwable cause = getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                return SERIALIZATION_FAILURE_SQL_STATE.equals(sqlState) || DEADLOCK_SQL_STATE.equals(sqlState);
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,280 @@
+package se.kth.iv1351.sgm.model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory copy of the rentable instruments and of all leases that have not yet
+ * ended, used to list rentable instruments without querying the database.
+ * The lease intervals of each instrument are kept in a {@link LeaseIntervals}, and
+ * the ids of the instruments that are free today are kept in one bit set per
+ * instrument type. The bit sets are recomputed when the day changes.
+ *
+ * Changes made through this process are applied as they are made, and changes made
+ * by others as the process is told about them. Changes that were missed are picked up
+ * when the index is reloaded, see {@link #isOlderThan(long)}. A reload reads the
+ * database before the index is replaced, so the changes applied meanwhile are recorded,
+ * see {@link #startRecordingChanges()}, and applied again to the new content.
+ */
+public class InstrumentAvailabilityIndex {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<Integer, Instrument> instruments = new HashMap<>();
+    private Map<Integer, LeaseIntervals> intervalsByInstrument = new HashMap<>();
+    private Map<String, BitSet> freeInstrumentsByType = new HashMap<>();
+    private BitSet freeInstruments = new BitSet();
+    private LocalDate freeInstrumentsDay = LocalDate.MIN;
+    private long loadedAtMillis;
+    private boolean stale = true;
+    // Null unless a reload is reading the database
+    private List<LeaseChange> changesDuringReload;
+    private boolean staleDuringReload;
+
+    /**
+     * Starts recording the changes applied to the index, before the content that
+     * replaces it is read. Must be followed by {@link #load} or
+     * {@link #stopRecordingChanges()}.
+     */
+    public void startRecordingChanges() {
+        lock.writeLock().lock();
+        try {
+            changesDuringReload = new ArrayList<>();
+            staleDuringReload = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops recording changes, for example because the reload failed.
+     */
+    public void stopRecordingChanges() {
+        lock.writeLock().lock();
+        try {
+            changesDuringReload = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the content of the index. The changes recorded since
+     * {@link #startRecordingChanges()}, if it was called, are applied to the new
+     * content, which may already include some of them.
+     *
+     * @param allInstruments All rentable instruments, rented or not.
+     * @param activeLeases   All leases that have not ended.
+     */
+    public void load(Collection<? extends InstrumentDTO> allInstruments, Collection<? extends LeaseDTO> activeLeases) {
+        Map<Integer, Instrument> newInstruments = new HashMap<>();
+        for (InstrumentDTO instrument : allInstruments) {
+            newInstruments.put(instrument.getId(), new Instrument(instrument.getId(), instrument.getPrice(),
+                    instrument.getType(), instrument.getBrand(), instrument.getQuality()));
+        }
+        Map<Integer, LeaseIntervals> newIntervals = new HashMap<>();
+        for (LeaseDTO lease : activeLeases) {
+            newIntervals.computeIfAbsent(lease.getInstrumentId(), id -> new LeaseIntervals())
+                    .add(lease.getId(), lease.getStartDay().toEpochDay(), lease.getEndDay().toEpochDay());
+        }
+
+        lock.writeLock().lock();
+        try {
+            instruments = newInstruments;
+            intervalsByInstrument = newIntervals;
+            freeInstrumentsDay = LocalDate.MIN;
+            loadedAtMillis = System.currentTimeMillis();
+            stale = false;
+            if (changesDuringReload != null) {
+                for (LeaseChange change : changesDuringReload) {
+                    if (change.created) {
+                        addInterval(change.lease);
+                    } else {
+                        // A lease that has ended is not read, nor needed
+                        updateInterval(change.lease);
+                    }
+                }
+                stale = staleDuringReload;
+                changesDuringReload = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param maxAgeMillis The longest time the content may be kept without reloading.
+     * @return true if the index must be reloaded, either because it was loaded more
+     * than the specified time ago or because it was marked as stale.
+     */
+    public boolean isOlderThan(long maxAgeMillis) {
+        lock.readLock().lock();
+        try {
+            return stale || System.currentTimeMillis() - loadedAtMillis > maxAgeMillis;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the index as stale, so that it is reloaded before it is used again.
+     */
+    public void markStale() {
+        lock.writeLock().lock();
+        try {
+            stale = true;
+            staleDuringReload = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param type The instrument type, or a blank string for all types.
+     * @return The instruments of the specified type that are not rented today, ordered by id.
+     */
+    public List<Instrument> findRentableInstruments(String type) {
+        return findRentableInstruments(type, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param type    The instrument type, or a blank string for all types.
+     * @param afterId Only instruments with a higher id are returned, zero to start from the first.
+     * @param limit   The maximum number of instruments to return.
+     * @return The instruments of the specified type that are not rented today, ordered by id.
+     */
+    public List<Instrument> findRentableInstruments(String type, int afterId, int limit) {
+        LocalDate today = LocalDate.now();
+        lock.readLock().lock();
+        try {
+            if (today.equals(freeInstrumentsDay)) {
+                return instrumentsIn(freeSetFor(type), afterId, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (!today.equals(freeInstrumentsDay)) {
+                recomputeFreeInstruments(today);
+            }
+            return instrumentsIn(freeSetFor(type), afterId, limit);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a lease that was created. A lease that is already in the index, since it was
+     * loaded after the lease was created, is not added again.
+     */
+    public void leaseCreated(LeaseDTO lease) {
+        lock.writeLock().lock();
+        try {
+            addInterval(lease);
+            recordChange(lease, true);
+            updateFreeInstrument(lease.getInstrumentId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the end day of a lease that was terminated.
+     *
+     * @param lease The lease, with its new end day.
+     */
+    public void leaseTerminated(LeaseDTO lease) {
+        lock.writeLock().lock();
+        try {
+            recordChange(lease, false);
+            if (!updateInterval(lease)) {
+                // The lease was created by someone else after the index was loaded, and the creation was missed.
+                stale = true;
+                return;
+            }
+            updateFreeInstrument(lease.getInstrumentId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addInterval(LeaseDTO lease) {
+        LeaseIntervals intervals = intervalsByInstrument.computeIfAbsent(lease.getInstrumentId(),
+                id -> new LeaseIntervals());
+        if (!intervals.updateEndDay(lease.getId(), lease.getEndDay().toEpochDay())) {
+            intervals.add(lease.getId(), lease.getStartDay().toEpochDay(), lease.getEndDay().toEpochDay());
+        }
+    }
+
+    /**
+     * @return false if the lease is not in the index.
+     */
+    private boolean updateInterval(LeaseDTO lease) {
+        LeaseIntervals intervals = intervalsByInstrument.get(lease.getInstrumentId());
+        return intervals != null && intervals.updateEndDay(lease.getId(), lease.getEndDay().toEpochDay());
+    }
+
+    private void recordChange(LeaseDTO lease, boolean created) {
+        if (changesDuringReload != null) {
+            changesDuringReload.add(new LeaseChange(lease, created));
+        }
+    }
+
+    private BitSet freeSetFor(String type) {
+        if (type == null || type.isBlank()) {
+            return freeInstruments;
+        }
+        return freeInstrumentsByType.getOrDefault(type, new BitSet());
+    }
+
+    private List<Instrument> instrumentsIn(BitSet instrumentIds, int afterId, int limit) {
+        List<Instrument> found = new ArrayList<>(Math.min(limit, instrumentIds.cardinality()));
+        for (int id = instrumentIds.nextSetBit(afterId + 1); id >= 0 && found.size() < limit;
+             id = instrumentIds.nextSetBit(id + 1)) {
+            found.add(instruments.get(id));
+        }
+        return found;
+    }
+
+    private void recomputeFreeInstruments(LocalDate today) {
+        freeInstrumentsDay = today;
+        freeInstruments = new BitSet();
+        freeInstrumentsByType = new HashMap<>();
+        for (Instrument instrument : instruments.values()) {
+            freeInstrumentsByType.computeIfAbsent(typeOf(instrument), type -> new BitSet());
+            updateFreeInstrument(instrument.getId());
+        }
+    }
+
+    private void updateFreeInstrument(int instrumentId) {
+        Instrument instrument = instruments.get(instrumentId);
+        if (instrument == null || LocalDate.MIN.equals(freeInstrumentsDay)) {
+            return;
+        }
+        LeaseIntervals intervals = intervalsByInstrument.get(instrumentId);
+        boolean free = intervals == null || !intervals.isRentedOn(freeInstrumentsDay.toEpochDay());
+        BitSet freeOfType = freeInstrumentsByType.computeIfAbsent(typeOf(instrument), type -> new BitSet());
+        freeInstruments.set(instrumentId, free);
+        freeOfType.set(instrumentId, free);
+    }
+
+    private String typeOf(Instrument instrument) {
+        return instrument.getType() == null ? "" : instrument.getType();
+    }
+
+    private static class LeaseChange {
+        private final LeaseDTO lease;
+        private final boolean created;
+
+        LeaseChange(LeaseDTO lease, boolean created) {
+            this.lease = lease;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package se.kth.iv1351.sgm.model;
+
+import java.util.Comparator;
+
+/**
+ * The conditions of an instrument search, and where in the result the search
+ * continues. Each condition is optional, a search without conditions finds all
+ * rentable instruments. The result is ordered on id, or on price and then id, and
+ * is read one page at a time: the next page is the search {@link #after} the last
+ * instrument of the current page, so that no skipped rows are read again.
+ *
+ * Instances are immutable.
+ */
+public class InstrumentSearch {
+    /**
+     * The order of the found instruments.
+     */
+    public enum Order {
+        ID, PRICE
+    }
+
+    private static final Comparator<InstrumentDTO> BY_ID = Comparator.comparingInt(InstrumentDTO::getId);
+    private static final Comparator<InstrumentDTO> BY_PRICE =
+            Comparator.comparingInt(InstrumentDTO::getPrice).thenComparingInt(InstrumentDTO::getId);
+
+    private final String type;
+    private final String brand;
+    private final String quality;
+    private final int minPrice;
+    private final int maxPrice;
+    private final Order order;
+    private final int afterId;
+    private final int afterPrice;
+
+    /**
+     * @param type     The instrument type, or null for all types.
+     * @param brand    The brand, or null for all brands.
+     * @param quality  The quality, or null for all qualities.
+     * @param minPrice The lowest price, inclusive.
+     * @param maxPrice The highest price, inclusive.
+     * @param order    The order of the found instruments.
+     */
+    public InstrumentSearch(String type, String brand, String quality, int minPrice, int maxPrice, Order order) {
+        this(type, brand, quality, minPrice, maxPrice, order, 0, 0);
+    }
+
+    private InstrumentSearch(String type, String brand, String quality, int minPrice, int maxPrice, Order order,
+                             int afterId, int afterPrice) {
+        this.type = type;
+        this.brand = brand;
+        this.quality = quality;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.order = order;
+        this.afterId = afterId;
+        this.afterPrice = afterPrice;
+    }
+
+    /**
+     * @return The same search, continuing after the specified instrument.
+     */
+    public InstrumentSearch after(InstrumentDTO instrument) {
+        return new InstrumentSearch(type, brand, quality, minPrice, maxPrice, order,
+                instrument.getId(), instrument.getPrice());
+    }
+
+    /**
+     * @return true if the specified instrument meets all conditions, and comes after
+     * the instrument this search continues after, if any.
+     */
+    public boolean matches(InstrumentDTO instrument) {
+        return (type == null || type.equals(instrument.getType()))
+                && (brand == null || brand.equals(instrument.getBrand()))
+                && (quality == null || quality.equals(instrument.getQuality()))
+                && instrument.getPrice() >= minPrice && instrument.getPrice() <= maxPrice
+                && (!isContinued() || isAfterKey(instrument));
+    }
+
+    private boolean isAfterKey(InstrumentDTO instrument) {
+        if (order == Order.PRICE && instrument.getPrice() != afterPrice) {
+            return instrument.getPrice() > afterPrice;
+        }
+        return instrument.getId() > afterId;
+    }
+
+    /**
+     * @return Compares instruments in the order of this search.
+     */
+    public Comparator<InstrumentDTO> comparator() {
+        return order == Order.PRICE ? BY_PRICE : BY_ID;
+    }
+
+    /**
+     * @return true if this search continues after an earlier page.
+     */
+    public boolean isContinued() {
+        return afterId != 0;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getBrand() {
+        return brand;
+    }
+
+    public String getQuality() {
+        return quality;
+    }
+
+    public int getMinPrice() {
+        return minPrice;
+    }
+
+    public int getMaxPrice() {
+        return maxPrice;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public int getAfterId() {
+        return afterId;
+    }
+
+    public int getAfterPrice() {
+        return afterPrice;
+    }
+}
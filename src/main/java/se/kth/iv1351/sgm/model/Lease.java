@@ -0,0 +1,60 @@
+package se.kth.iv1351.sgm.model;
+
+import java.time.LocalDate;
+
+public class Lease implements LeaseDTO {
+    private int id;
+    private int studentId;
+    private int instrumentId;
+    private LocalDate startDay;
+    private LocalDate endDay;
+
+    public Lease(int id, int studentId, int instrumentId, LocalDate startDay, LocalDate endDay) {
+        this.id = id;
+        this.studentId = studentId;
+        this.instrumentId = instrumentId;
+        this.startDay = startDay;
+        this.endDay = endDay;
+    }
+
+    /**
+     * @return true if the lease has started but not yet ended on the specified day
+     */
+    public boolean isActiveOn(LocalDate day) {
+        return !day.isBefore(startDay) && day.isBefore(endDay);
+    }
+
+    @Override
+    public String toString() {
+        return "lease_id: " + getId() +
+                ", student_id: " + getStudentId() +
+                ", instrument_id: " + getInstrumentId() +
+                ", start_day: " + getStartDay() +
+                ", end_day: " + getEndDay();
+    }
+
+    @Override
+    public int getId() {
+        return this.id;
+    }
+
+    @Override
+    public int getStudentId() {
+        return this.studentId;
+    }
+
+    @Override
+    public int getInstrumentId() {
+        return this.instrumentId;
+    }
+
+    @Override
+    public LocalDate getStartDay() {
+        return this.startDay;
+    }
+
+    @Override
+    public LocalDate getEndDay() {
+        return this.endDay;
+    }
+}
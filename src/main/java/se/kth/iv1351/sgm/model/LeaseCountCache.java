@@ -0,0 +1,134 @@
+package se.kth.iv1351.sgm.model;
+
+import java.time.LocalDate;
+
+import se.kth.iv1351.sgm.util.ExpiringIntIntMap;
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * Remembers how many active leases some students have, so that a student who already
+ * has the greatest allowed number of leases can be rejected without querying the
+ * database. The count of a student is a lower bound, which stays true until the end
+ * day of one of the counted leases, when the entry expires. A count read from the
+ * database is only known to hold today, while a lease created by this process is
+ * counted until its end day.
+ *
+ * Only the greatest allowed count is ever trusted, students with fewer leases must
+ * still be checked by the database. Leases created by others only make the counts
+ * lower than they are, but a lease terminated by others must be forgotten, like those
+ * terminated through this process. In case such a termination was missed, all entries
+ * are forgotten when they get older than a maximum age. A count may therefore only be
+ * read while the student's leases are locked, so that a termination can not be told
+ * before the count it makes stale is remembered, see {@link #countRead}.
+ *
+ * The checks are counted in the histograms <code>leaseCounts.hits</code> and
+ * <code>leaseCounts.misses</code>, which record the count remembered for the student,
+ * or zero if there was none.
+ */
+public class LeaseCountCache {
+    private static final int ABSENT = -1;
+    private static final Histogram HITS = Metrics.counts("leaseCounts.hits");
+    private static final Histogram MISSES = Metrics.counts("leaseCounts.misses");
+    private final ExpiringIntIntMap countsByStudent;
+    private final int maxLeasesPerStudent;
+    private final long maxAgeMillis;
+    private long clearedAtMillis = System.currentTimeMillis();
+
+    /**
+     * @param maxSize             The greatest number of students remembered.
+     * @param maxLeasesPerStudent The greatest number of active leases a student may have.
+     * @param maxAgeMillis        How long the entries are kept before they are all forgotten.
+     */
+    public LeaseCountCache(int maxSize, int maxLeasesPerStudent, long maxAgeMillis) {
+        this.countsByStudent = new ExpiringIntIntMap(maxSize);
+        this.maxLeasesPerStudent = maxLeasesPerStudent;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return true if the specified student is known to already have the greatest
+     * allowed number of active leases, false if the database must be asked.
+     */
+    public boolean isAtLimit(int studentId) {
+        int count;
+        synchronized (countsByStudent) {
+            long nowMillis = System.currentTimeMillis();
+            if (nowMillis - clearedAtMillis > maxAgeMillis) {
+                countsByStudent.clear();
+                clearedAtMillis = nowMillis;
+            }
+            count = countsByStudent.get(studentId, today(), ABSENT);
+        }
+        if (count >= maxLeasesPerStudent) {
+            HITS.record(count);
+            return true;
+        }
+        MISSES.record(Math.max(count, 0));
+        return false;
+    }
+
+    /**
+     * Remembers the number of active leases of a student, as read from the database.
+     * The count holds until tomorrow, since the end days of the leases are not known.
+     * Must be called before the transaction that read the count ends, and only if that
+     * transaction locked the student's leases when reading it.
+     */
+    public void countRead(int studentId, int activeLeases) {
+        int today = today();
+        synchronized (countsByStudent) {
+            if (countsByStudent.get(studentId, today, ABSENT) != activeLeases) {
+                countsByStudent.put(studentId, activeLeases, today + 1, today);
+            }
+        }
+    }
+
+    /**
+     * Counts a lease created for a student, which is active until the specified end day.
+     */
+    public void leaseCreated(int studentId, LocalDate endDay) {
+        int today = today();
+        int leaseExpiry = (int) endDay.toEpochDay();
+        synchronized (countsByStudent) {
+            int count = countsByStudent.get(studentId, today, ABSENT);
+            if (count == ABSENT) {
+                countsByStudent.put(studentId, 1, leaseExpiry, today);
+            } else {
+                int expiry = Math.min(countsByStudent.expiryOf(studentId, today), leaseExpiry);
+                countsByStudent.put(studentId, count + 1, expiry, today);
+            }
+        }
+    }
+
+    /**
+     * Forgets the count of a student whose lease was terminated.
+     */
+    public void leaseTerminated(int studentId) {
+        synchronized (countsByStudent) {
+            countsByStudent.remove(studentId);
+        }
+    }
+
+    /**
+     * Forgets all counts, since leases may have been terminated without this cache being told.
+     */
+    public void clear() {
+        synchronized (countsByStudent) {
+            countsByStudent.clear();
+            clearedAtMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return The number of students remembered.
+     */
+    public int size() {
+        synchronized (countsByStudent) {
+            return countsByStudent.size();
+        }
+    }
+
+    private static int today() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+}
@@ -0,0 +1,11 @@
+package se.kth.iv1351.sgm.model;
+
+import java.time.LocalDate;
+
+public interface LeaseDTO {
+    public int getId();
+    public int getStudentId();
+    public int getInstrumentId();
+    public LocalDate getStartDay();
+    public LocalDate getEndDay();
+}
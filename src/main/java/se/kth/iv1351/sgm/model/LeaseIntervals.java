@@ -0,0 +1,97 @@
+package se.kth.iv1351.sgm.model;
+
+import java.util.Arrays;
+
+/**
+ * The lease intervals of one instrument, as half open day intervals
+ * <code>[start_day, end_day)</code> sorted on start day. Alongside the intervals the
+ * highest end day of each prefix is kept, so whether the instrument is rented on a
+ * given day is answered with one binary search: it is rented if any interval that
+ * started on or before that day ends after it.
+ */
+class LeaseIntervals {
+    private static final int INITIAL_CAPACITY = 4;
+    private int[] leaseIds = new int[INITIAL_CAPACITY];
+    private long[] startDays = new long[INITIAL_CAPACITY];
+    private long[] endDays = new long[INITIAL_CAPACITY];
+    private long[] maxEndDays = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Adds the interval of a lease. Leases are normally created with the current day
+     * as start day, so the interval is appended in constant time.
+     */
+    void add(int leaseId, long startDay, long endDay) {
+        if (size == leaseIds.length) {
+            grow();
+        }
+        int index = size;
+        while (index > 0 && startDays[index - 1] > startDay) {
+            index--;
+        }
+        System.arraycopy(leaseIds, index, leaseIds, index + 1, size - index);
+        System.arraycopy(startDays, index, startDays, index + 1, size - index);
+        System.arraycopy(endDays, index, endDays, index + 1, size - index);
+        leaseIds[index] = leaseId;
+        startDays[index] = startDay;
+        endDays[index] = endDay;
+        size++;
+        updateMaxEndDays(index);
+    }
+
+    /**
+     * Changes the end day of a lease.
+     *
+     * @return <code>false</code> if there is no interval for the lease.
+     */
+    boolean updateEndDay(int leaseId, long endDay) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (leaseIds[i] == leaseId) {
+                endDays[i] = endDay;
+                updateMaxEndDays(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any lease interval contains the specified day.
+     */
+    boolean isRentedOn(long day) {
+        int lastStartedIndex = lastIndexStartingOnOrBefore(day);
+        return lastStartedIndex >= 0 && maxEndDays[lastStartedIndex] > day;
+    }
+
+    private int lastIndexStartingOnOrBefore(long day) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (startDays[middle] <= day) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private void updateMaxEndDays(int fromIndex) {
+        long maxEndDay = fromIndex == 0 ? Long.MIN_VALUE : maxEndDays[fromIndex - 1];
+        for (int i = fromIndex; i < size; i++) {
+            maxEndDay = Math.max(maxEndDay, endDays[i]);
+            maxEndDays[i] = maxEndDay;
+        }
+    }
+
+    private void grow() {
+        int capacity = leaseIds.length * 2;
+        leaseIds = Arrays.copyOf(leaseIds, capacity);
+        startDays = Arrays.copyOf(startDays, capacity);
+        endDays = Arrays.copyOf(endDays, capacity);
+        maxEndDays = Arrays.copyOf(maxEndDays, capacity);
+    }
+}
@@ -0,0 +1,95 @@
+package se.kth.iv1351.sgm.model;
+
+
+/**
+ * One requested lease in a bulk rental, together with its outcome once it has
+ * been processed. A request is either accepted with the id of the created lease,
+ * or rejected with the reason why the lease could not be created.
+ */
+public class LeaseRequest {
+    private final int rowNumber;
+    private final int studentId;
+    private final int instrumentId;
+    private final String endDay;
+    private int leaseId;
+    private String rejectionReason;
+
+    /**
+     * @param rowNumber    The row of the request in its input, used when reporting the outcome.
+     * @param studentId    The student who rents the instrument.
+     * @param instrumentId The rented instrument.
+     * @param endDay       The last day of the lease, formatted as yyyy-MM-dd.
+     */
+    public LeaseRequest(int rowNumber, int studentId, int instrumentId, String endDay) {
+        this.rowNumber = rowNumber;
+        this.studentId = studentId;
+        this.instrumentId = instrumentId;
+        this.endDay = endDay;
+    }
+
+    /**
+     * Records that the lease was created.
+     */
+    public void accept(int leaseId) {
+        this.leaseId = leaseId;
+    }
+
+    /**
+     * Records that the lease could not be created. This overrides an earlier
+     * acceptance, for example if the transaction creating the lease was rolled back.
+     */
+    public void reject(String reason) {
+        this.leaseId = 0;
+        this.rejectionReason = reason;
+    }
+
+    /**
+     * Forgets the outcome, so that the request can be processed again after the
+     * transaction that processed it was rolled back.
+     */
+    public void reset() {
+        this.leaseId = 0;
+        this.rejectionReason = null;
+    }
+
+    /**
+     * @return true if the request has been neither accepted nor rejected.
+     */
+    public boolean isPending() {
+        return leaseId == 0 && rejectionReason == null;
+    }
+
+    public boolean isRejected() {
+        return rejectionReason != null;
+    }
+
+    public int getRowNumber() {
+        return rowNumber;
+    }
+
+    public int getStudentId() {
+        return studentId;
+    }
+
+    public int getInstrumentId() {
+        return instrumentId;
+    }
+
+    public String getEndDay() {
+        return endDay;
+    }
+
+    /**
+     * @return The id of the created lease, or zero if no lease was created.
+     */
+    public int getLeaseId() {
+        return leaseId;
+    }
+
+    /**
+     * @return Why the lease was not created, or null if it was not rejected.
+     */
+    public String getRejectionReason() {
+        return rejectionReason;
+    }
+}
@@ -0,0 +1,56 @@
+package se.kth.iv1351.sgm.model;
+
+import java.util.BitSet;
+
+/**
+ * The ids of all students, kept in memory so that a lease for a student that does not
+ * exist can be rejected without querying the database. The ids are kept in a bit set,
+ * which takes one bit per id up to the highest id, and is replaced as a whole when
+ * the set is reloaded, so it can be read by any number of threads without locking.
+ *
+ * Students added by others since the set was loaded are not known until the set is
+ * reloaded, see {@link #isOlderThan(long)}.
+ */
+public class StudentIdSet {
+    private volatile Content content = new Content(new BitSet(), 0);
+
+    /**
+     * Replaces the content of the set.
+     *
+     * @param studentIds The ids of all students.
+     */
+    public void load(int[] studentIds) {
+        BitSet ids = new BitSet();
+        for (int studentId : studentIds) {
+            if (studentId >= 0) {
+                ids.set(studentId);
+            }
+        }
+        content = new Content(ids, System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if there is a student with the specified id.
+     */
+    public boolean contains(int studentId) {
+        return studentId >= 0 && content.ids.get(studentId);
+    }
+
+    /**
+     * @param maxAgeMillis The longest time the content may be kept without reloading.
+     * @return true if the set was loaded more than the specified time ago.
+     */
+    public boolean isOlderThan(long maxAgeMillis) {
+        return System.currentTimeMillis() - content.loadedAtMillis > maxAgeMillis;
+    }
+
+    private static class Content {
+        private final BitSet ids;
+        private final long loadedAtMillis;
+
+        Content(BitSet ids, long loadedAtMillis) {
+            this.ids = ids;
+            this.loadedAtMillis = loadedAtMillis;
+        }
+    }
+}
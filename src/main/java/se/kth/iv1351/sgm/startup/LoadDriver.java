@@ -0,0 +1,377 @@
+package se.kth.iv1351.sgm.startup;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import se.kth.iv1351.sgm.controller.Controller;
+import se.kth.iv1351.sgm.integration.SchoolDAO;
+import se.kth.iv1351.sgm.integration.SchoolDBException;
+import se.kth.iv1351.sgm.model.LeaseDTO;
+import se.kth.iv1351.sgm.model.RentalException;
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
+
+/**
+ * Generates load from many concurrent simulated desks, to see how renting behaves
+ * under contention. Each desk runs a random mix of list, rent and terminate against
+ * the same controller until the run ends. Students and instruments are picked with a
+ * skewed distribution, so that a few of them are hit much more often than the rest,
+ * which is where the locks are contended. When the run ends, throughput, latency
+ * percentiles and outcomes are printed for each operation, and the active leases are
+ * checked against the limit of two per student.
+ *
+ * The load is configured with the system properties <code>sgm.load.*</code>, and the
+ * controller with the same properties as the application.
+ */
+public class LoadDriver {
+    private static final String DEADLOCK_SQL_STATE = "40P01";
+    private static final String SERIALIZATION_FAILURE_SQL_STATE = "40001";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private enum Operation {
+        LIST, RENT, TERMINATE
+    }
+
+    private enum Outcome {
+        OK, REJECTED, DEADLOCK, SERIALIZATION_FAILURE, ERROR
+    }
+
+    private final Controller ctrl;
+    private final int clients;
+    private final long durationNanos;
+    private final Operation[] operations = Operation.values();
+    private final int[] cumulativeWeights = new int[operations.length];
+    private final SkewedIds students;
+    private final SkewedIds instruments;
+    private final String endDay = LocalDate.now().plusMonths(1).toString();
+    private final ConcurrentLinkedQueue<Integer> createdLeases = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Runs the load, prints the report and exits.
+     */
+    public static void main(String[] args) {
+        try {
+            Controller ctrl = new Controller();
+            try {
+                new LoadDriver(ctrl).run();
+            } finally {
+                ctrl.close();
+            }
+        } catch (SchoolDBException bdbe) {
+            System.out.println("Could not connect to School db.");
+            bdbe.printStackTrace();
+        } catch (InterruptedException interrupted) {
+            System.out.println("Interrupted before the run ended.");
+        }
+    }
+
+    /**
+     * Creates a new instance that loads the specified controller. The load is read from
+     * the system properties <code>sgm.load.clients</code>, <code>sgm.load.durationSeconds</code>,
+     * <code>sgm.load.mix</code>, <code>sgm.load.students</code>, <code>sgm.load.instruments</code>
+     * and <code>sgm.load.skew</code>.
+     */
+    public LoadDriver(Controller ctrl) {
+        this.ctrl = ctrl;
+        this.clients = Integer.getInteger("sgm.load.clients", 16);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("sgm.load.durationSeconds", 30));
+        double skew = Double.parseDouble(System.getProperty("sgm.load.skew", "1.0"));
+        this.students = new SkewedIds(Integer.getInteger("sgm.load.students", 1000), skew);
+        this.instruments = new SkewedIds(Integer.getInteger("sgm.load.instruments", 1000), skew);
+        parseMix(System.getProperty("sgm.load.mix", "list=20,rent=50,terminate=30"));
+    }
+
+    /**
+     * Runs all clients for the configured duration, and prints the report.
+     */
+    public void run() throws InterruptedException {
+        System.out.println("Running " + clients + " clients for " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s.");
+        ExecutorService clientThreads = Executors.newFixedThreadPool(clients);
+        List<Callable<Map<Operation, OperationStats>>> clientTasks = new ArrayList<>();
+        long deadline = System.nanoTime() + durationNanos;
+        for (int i = 0; i < clients; i++) {
+            clientTasks.add(() -> runClient(deadline));
+        }
+        long startNanos = System.nanoTime();
+        List<Future<Map<Operation, OperationStats>>> results = clientThreads.invokeAll(clientTasks);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        clientThreads.shutdown();
+
+        Map<Operation, OperationStats> total = new EnumMap<>(Operation.class);
+        for (Operation operation : operations) {
+            total.put(operation, new OperationStats());
+        }
+        for (Future<Map<Operation, OperationStats>> result : results) {
+            try {
+                result.get().forEach((operation, stats) -> total.get(operation).addAll(stats));
+            } catch (ExecutionException e) {
+                System.out.println("A client failed: " + e.getCause());
+            }
+        }
+        printReport(total, elapsedNanos);
+        checkLeaseLimit();
+    }
+
+    private Map<Operation, OperationStats> runClient(long deadline) {
+        Random random = ThreadLocalRandom.current();
+        Map<Operation, OperationStats> statsByOperation = new EnumMap<>(Operation.class);
+        for (Operation operation : operations) {
+            statsByOperation.put(operation, new OperationStats());
+        }
+        while (System.nanoTime() < deadline) {
+            Operation operation = pickOperation(random);
+            Integer leaseId = null;
+            if (operation == Operation.TERMINATE) {
+                leaseId = createdLeases.poll();
+                if (leaseId == null) {
+                    // Nothing to terminate yet.
+                    operation = Operation.RENT;
+                }
+            }
+            long startNanos = System.nanoTime();
+            Outcome outcome = execute(operation, leaseId, random);
+            statsByOperation.get(operation).record(System.nanoTime() - startNanos, outcome);
+        }
+        return statsByOperation;
+    }
+
+    private Outcome execute(Operation operation, Integer leaseId, Random random) {
+        try {
+            switch (operation) {
+                case LIST:
+                    ctrl.getInstruments("");
+                    break;
+                case RENT:
+                    createdLeases.add(ctrl.createLease(students.next(random), instruments.next(random), endDay));
+                    break;
+                case TERMINATE:
+                    ctrl.terminateLease(leaseId);
+                    break;
+            }
+            return Outcome.OK;
+        } catch (Exception e) {
+            return classify(e);
+        }
+    }
+
+    /**
+     * A failure caused by the database is classified by its SQL state, any other failure
+     * is a rejection by the rental rules if it was raised as a {@link RentalException}.
+     */
+    private Outcome classify(Exception failure) {
+        Throwable rootCause = failure;
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (DEADLOCK_SQL_STATE.equals(sqlState)) {
+                    return Outcome.DEADLOCK;
+                }
+                if (SERIALIZATION_FAILURE_SQL_STATE.equals(sqlState)) {
+                    return Outcome.SERIALIZATION_FAILURE;
+                }
+                return Outcome.ERROR;
+            }
+            rootCause = cause;
+        }
+        return rootCause instanceof RentalException ? Outcome.REJECTED : Outcome.ERROR;
+    }
+
+    private Operation pickOperation(Random random) {
+        int draw = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < operations.length; i++) {
+            if (draw < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    /**
+     * Reads a mix like <code>list=20,rent=50,terminate=30</code>, operations that are
+     * not mentioned are not run.
+     */
+    private void parseMix(String mix) {
+        int[] weights = new int[operations.length];
+        for (String part : mix.split(",")) {
+            String[] operationAndWeight = part.trim().split("=");
+            Operation operation = Operation.valueOf(operationAndWeight[0].trim().toUpperCase());
+            weights[operation.ordinal()] = Integer.parseInt(operationAndWeight[1].trim());
+        }
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cumulativeWeights[i] = sum;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("The mix " + mix + " runs no operation.");
+        }
+    }
+
+    private void printReport(Map<Operation, OperationStats> statsByOperation, long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long totalCount = 0;
+        for (OperationStats stats : statsByOperation.values()) {
+            totalCount += stats.count();
+        }
+        System.out.printf("%d operations in %.1f s, %.1f per second.%n", totalCount, elapsedSeconds,
+                totalCount / elapsedSeconds);
+        System.out.printf("%-10s %9s %9s %9s %9s %9s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "per s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "ok", "rejected", "deadlock", "serializ.", "error");
+        for (Map.Entry<Operation, OperationStats> entry : statsByOperation.entrySet()) {
+            OperationStats stats = entry.getValue();
+            System.out.printf("%-10s %9d %9.1f", entry.getKey().name().toLowerCase(), stats.count(),
+                    stats.count() / elapsedSeconds);
+            for (double percentile : PERCENTILES) {
+                System.out.printf(" %9.2f", stats.percentileNanos(percentile) / 1e6);
+            }
+            System.out.printf(" %9.2f", stats.percentileNanos(100) / 1e6);
+            for (Outcome outcome : Outcome.values()) {
+                System.out.printf(" %9d", stats.outcomeCounts[outcome.ordinal()]);
+            }
+            System.out.println();
+        }
+        Histogram rentAttempts = Metrics.counts("rent.attempts");
+        if (rentAttempts.getCount() > 0) {
+            System.out.printf("Serializable rents: %.2f attempts on average, at most %d, %d gave up after retrying.%n",
+                    rentAttempts.getMean(), rentAttempts.getMax(), Metrics.counts("rent.retriesExhausted").getCount());
+        }
+        printPoolReport("pool", "Connection pool");
+        printPoolReport("replicaPool", "Replica pool");
+    }
+
+    private void printPoolReport(String pool, String title) {
+        Histogram waits = Metrics.latency(pool + ".wait");
+        if (waits.getCount() == 0) {
+            return;
+        }
+        Histogram inUsePercents = Metrics.counts(pool + ".inUsePercent");
+        System.out.printf("%s: %d borrows waited %.2f ms on average, p99 %.2f ms, at most %.2f ms, "
+                        + "%d%% in use at p50, %d%% at p99, %d timed out, %d evicted, %d failed validation.%n",
+                title, waits.getCount(), waits.getMean() / 1e6, waits.getP99() / 1e6, waits.getMax() / 1e6,
+                inUsePercents.getP50(), inUsePercents.getP99(), Metrics.counts(pool + ".timeouts").getCount(),
+                Metrics.counts(pool + ".evictions").getCount(),
+                Metrics.counts(pool + ".validationFailures").getCount());
+    }
+
+    /**
+     * Reads all active leases and prints the students that have more than the allowed
+     * number of them.
+     */
+    private void checkLeaseLimit() {
+        List<? extends LeaseDTO> activeLeases;
+        try {
+            activeLeases = ctrl.getActiveLeases();
+        } catch (RentalException re) {
+            System.out.println("Could not check the lease limit: " + re.getMessage());
+            return;
+        }
+        Map<Integer, Integer> leaseCountByStudent = new HashMap<>();
+        for (LeaseDTO lease : activeLeases) {
+            leaseCountByStudent.merge(lease.getStudentId(), 1, Integer::sum);
+        }
+        int studentsOverLimit = 0;
+        for (Map.Entry<Integer, Integer> entry : leaseCountByStudent.entrySet()) {
+            if (entry.getValue() > SchoolDAO.MAX_LEASES_PER_STUDENT) {
+                studentsOverLimit++;
+                System.out.println("Student " + entry.getKey() + " has " + entry.getValue() + " active leases.");
+            }
+        }
+        if (studentsOverLimit == 0) {
+            System.out.println("Lease limit held: no student has more than " + SchoolDAO.MAX_LEASES_PER_STUDENT
+                    + " of the " + activeLeases.size() + " active leases.");
+        } else {
+            System.out.println("Lease limit VIOLATED: " + studentsOverLimit + " students have more than "
+                    + SchoolDAO.MAX_LEASES_PER_STUDENT + " active leases.");
+        }
+    }
+
+    /**
+     * Picks ids from 1 to a maximum with a Zipf distribution, where id n is picked with
+     * a probability proportional to 1 / n^skew. A skew of zero picks all ids equally often.
+     */
+    private static class SkewedIds {
+        private final double[] cumulativeProbabilities;
+
+        SkewedIds(int count, double skew) {
+            cumulativeProbabilities = new double[count];
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulativeProbabilities[i] = sum;
+            }
+            for (int i = 0; i < count; i++) {
+                cumulativeProbabilities[i] /= sum;
+            }
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return Math.min(index, cumulativeProbabilities.length - 1) + 1;
+        }
+    }
+
+    /**
+     * The latencies and outcomes of one operation, recorded by one client or merged from all.
+     */
+    private static class OperationStats {
+        private long[] latencyNanos = new long[1024];
+        private int count;
+        private boolean sorted;
+        private final long[] outcomeCounts = new long[Outcome.values().length];
+
+        void record(long nanos, Outcome outcome) {
+            if (count == latencyNanos.length) {
+                latencyNanos = Arrays.copyOf(latencyNanos, count * 2);
+            }
+            latencyNanos[count++] = nanos;
+            outcomeCounts[outcome.ordinal()]++;
+            sorted = false;
+        }
+
+        void addAll(OperationStats other) {
+            if (count + other.count > latencyNanos.length) {
+                latencyNanos = Arrays.copyOf(latencyNanos, count + other.count);
+            }
+            System.arraycopy(other.latencyNanos, 0, latencyNanos, count, other.count);
+            count += other.count;
+            for (int i = 0; i < outcomeCounts.length; i++) {
+                outcomeCounts[i] += other.outcomeCounts[i];
+            }
+            sorted = false;
+        }
+
+        int count() {
+            return count;
+        }
+
+        long percentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!sorted) {
+                Arrays.sort(latencyNanos, 0, count);
+                sorted = true;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * count);
+            return latencyNanos[Math.max(rank, 1) - 1];
+        }
+    }
+}
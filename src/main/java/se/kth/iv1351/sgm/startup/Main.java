@@ -24,23 +24,83 @@
 
 package se.kth.iv1351.sgm.startup;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
 import se.kth.iv1351.sgm.controller.Controller;
 import se.kth.iv1351.sgm.integration.SchoolDBException;
 import se.kth.iv1351.sgm.view.BlockingInterpreter;
+import se.kth.iv1351.sgm.view.InterpreterServer;
+import se.kth.iv1351.sgm.view.ScriptRunner;
 
 /**
  * Starts the renting client.
  */
 public class Main {
+    private static final String SERVER_OPTION = "--server";
+    private static final String SCRIPT_OPTION = "--script";
+    private static final String STANDARD_INPUT = "-";
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
     /**
-     * @param args There are no command line arguments.
+     * @param args Either no arguments, to read commands from the console,
+     *             <code>--server &lt;port&gt;</code> to accept commands from TCP clients, or
+     *             <code>--script &lt;file&gt;</code> to perform the commands in the file,
+     *             where the file <code>-</code> is standard input.
      */
     public static void main(String[] args) {
         try {
-        new BlockingInterpreter(new Controller()).handleCmds();
+            Controller ctrl = new Controller();
+            if (args.length == 2 && args[0].equals(SERVER_OPTION)) {
+                // The shutdown hook closes the controller, once the clients are done with it
+                serve(ctrl, Integer.parseInt(args[1]));
+            } else if (args.length == 2 && args[0].equals(SCRIPT_OPTION)) {
+                runScript(ctrl, args[1]);
+                ctrl.close();
+            } else {
+                new BlockingInterpreter(ctrl).handleCmds();
+                ctrl.close();
+            }
         } catch(SchoolDBException bdbe) {
             System.out.println("Could not connect to School db.");
             bdbe.printStackTrace();
         }
     }
+
+    private static void runScript(Controller ctrl, String fileName) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER_SIZE),
+                false, StandardCharsets.UTF_8);
+        try (BufferedReader in = fileName.equals(STANDARD_INPUT)
+                ? new BufferedReader(Channels.newReader(Channels.newChannel(System.in), StandardCharsets.UTF_8), INPUT_BUFFER_SIZE)
+                : Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            new ScriptRunner(ctrl, in, out).run();
+        } catch (IOException ioe) {
+            out.flush();
+            System.out.println("Could not read " + fileName + ".");
+            ioe.printStackTrace();
+        }
+    }
+
+    private static void serve(Controller ctrl, int port) {
+        InterpreterServer server = new InterpreterServer(ctrl, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            ctrl.close();
+        }));
+        try {
+            server.serve();
+        } catch (IOException ioe) {
+            System.out.println("Could not listen to port " + port + ".");
+            ioe.printStackTrace();
+        }
+    }
 }
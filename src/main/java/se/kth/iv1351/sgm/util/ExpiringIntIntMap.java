@@ -0,0 +1,171 @@
+package se.kth.iv1351.sgm.util;
+
+import java.util.Arrays;
+
+/**
+ * A bounded hash map from primitive <code>int</code> keys to <code>int</code> values,
+ * where each entry expires at a point in time given when it is stored. Time is any
+ * <code>int</code> that only grows, for example the epoch day. Uses open addressing
+ * with linear probing, and removes entries by moving the following entries back, so
+ * that lookups never pass deleted slots.
+ *
+ * Expired entries are removed when they are looked up. When the map holds its maximum
+ * number of entries, storing a new key evicts another entry, chosen by a hand that
+ * moves around the table, so that the oldest stored slots tend to be evicted first.
+ * This class is not thread safe.
+ */
+public class ExpiringIntIntMap {
+    private static final float MAX_LOAD = 0.5f;
+    // An entry always expires after the time it is stored, so zero marks an empty slot
+    private static final int EMPTY = 0;
+    private final int[] keys;
+    private final int[] values;
+    private final int[] expiresAt;
+    private final int maxSize;
+    private int size;
+    private int evictionHand;
+
+    /**
+     * Creates an empty map.
+     *
+     * @param maxSize The greatest number of entries the map holds.
+     */
+    public ExpiringIntIntMap(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The map must hold at least one entry.");
+        }
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (maxSize / MAX_LOAD)) - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.expiresAt = new int[capacity];
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param now The current time.
+     * @return The value of the specified key, or <code>absentValue</code> if there is
+     * none or it has expired.
+     */
+    public int get(int key, int now, int absentValue) {
+        int slot = find(key, now);
+        return slot < 0 ? absentValue : values[slot];
+    }
+
+    /**
+     * @param now The current time.
+     * @return The time the entry of the specified key expires, or zero if there is none
+     * or it has expired.
+     */
+    public int expiryOf(int key, int now) {
+        int slot = find(key, now);
+        return slot < 0 ? EMPTY : expiresAt[slot];
+    }
+
+    /**
+     * Sets the value of the specified key, replacing the value and expiry time of any
+     * previous entry. If the key is new and the map is full, another entry is evicted.
+     *
+     * @param expiresAt When the entry expires, it is no longer found at this time.
+     * @param now       The current time, which must be before <code>expiresAt</code>.
+     */
+    public void put(int key, int value, int expiresAt, int now) {
+        if (expiresAt <= now || expiresAt == EMPTY) {
+            remove(key);
+            return;
+        }
+        int slot = find(key, now);
+        if (slot < 0) {
+            if (size == maxSize) {
+                evict();
+            }
+            int mask = keys.length - 1;
+            slot = slotOf(key, mask);
+            while (this.expiresAt[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        this.expiresAt[slot] = expiresAt;
+    }
+
+    /**
+     * Removes the entry of the specified key, if there is one.
+     */
+    public void remove(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); expiresAt[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                removeSlot(slot);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        Arrays.fill(expiresAt, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @return The number of entries, including expired entries that have not yet been
+     * looked up.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(int key, int now) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); expiresAt[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                if (expiresAt[slot] <= now) {
+                    removeSlot(slot);
+                    return -1;
+                }
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void evict() {
+        int mask = keys.length - 1;
+        while (expiresAt[evictionHand] == EMPTY) {
+            evictionHand = (evictionHand + 1) & mask;
+        }
+        removeSlot(evictionHand);
+        evictionHand = (evictionHand + 1) & mask;
+    }
+
+    /**
+     * Empties the specified slot, and moves back the following entries that would
+     * otherwise no longer be found.
+     */
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; expiresAt[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slotOf(keys[next], mask);
+            // The entry may fill the hole if the hole lies between its home slot and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                expiresAt[hole] = expiresAt[next];
+                hole = next;
+            }
+        }
+        expiresAt[hole] = EMPTY;
+        size--;
+    }
+
+    private static int slotOf(int key, int mask) {
+        // Spread sequential ids over the table
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,145 @@
+package se.kth.iv1351.sgm.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in buckets of exponentially growing width, so that recording
+ * is a few atomic increments and percentiles can be read at any time. Values below 16
+ * are counted exactly, larger values in 16 buckets per power of two, which makes a
+ * percentile at most about 6% higher than the true value. Negative values are recorded
+ * as zero. This class is thread safe.
+ */
+public class Histogram implements HistogramMXBean {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private final String name;
+    private final boolean nanos;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name  The name of the measured value.
+     * @param nanos true if the values are durations in nanoseconds, false if they are counts.
+     */
+    public Histogram(String name, boolean nanos) {
+        this.name = name;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Records one value.
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Another thread updated the max, try again.
+        }
+    }
+
+    /**
+     * Records the time elapsed since the specified value of <code>System.nanoTime()</code>.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getUnit() {
+        return nanos ? "ns" : "";
+    }
+
+    public boolean isNanos() {
+        return nanos;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long currentCount = count.sum();
+        return currentCount == 0 ? 0 : (double) sum.sum() / currentCount;
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile A percentile between 0 and 100.
+     * @return The highest value in the bucket holding the specified percentile, but
+     * never more than the max, or zero if no value has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
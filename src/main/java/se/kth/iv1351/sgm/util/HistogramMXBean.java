@@ -0,0 +1,29 @@
+package se.kth.iv1351.sgm.util;
+
+/**
+ * The management interface of a {@link Histogram}, through which it is exported via JMX.
+ */
+public interface HistogramMXBean {
+    public String getName();
+
+    /**
+     * @return <code>ns</code> if the values are durations in nanoseconds, or an empty
+     * string if they are counts.
+     */
+    public String getUnit();
+
+    public long getCount();
+
+    public double getMean();
+
+    public long getP50();
+
+    public long getP99();
+
+    public long getMax();
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset();
+}
@@ -0,0 +1,154 @@
+package se.kth.iv1351.sgm.util;
+
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * A hash map from primitive <code>int</code> keys to objects, using open addressing
+ * with linear probing. Keys are never boxed, and an entry costs one slot in an
+ * <code>int</code> array and one in an object array. Entries can not be removed.
+ * This class is not thread safe.
+ *
+ * @param <V> The type of the values.
+ */
+public class IntObjectHashMap<V> {
+    private static final float MAX_LOAD = 0.6f;
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Creates an empty map.
+     */
+    public IntObjectHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty map that can hold the specified number of entries without growing.
+     */
+    public IntObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * @return The value of the specified key, or <code>null</code> if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the specified key has a value.
+     */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Sets the value of the specified key.
+     *
+     * @param value The value, which must not be <code>null</code>.
+     * @return The previous value of the key, or <code>null</code> if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Values must not be null.");
+        }
+        if (size + 1 > keys.length * MAX_LOAD) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = slotOf(key, mask);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * @return The value of the specified key, which is created with the specified
+     * function and stored if the key had no value.
+     */
+    public V computeIfAbsent(int key, IntFunction<? extends V> createValue) {
+        V value = get(key);
+        if (value == null) {
+            value = createValue.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Calls the specified consumer once for each key, in no particular order.
+     */
+    public void forEachKey(IntConsumer consumer) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                consumer.accept(keys[i]);
+            }
+        }
+    }
+
+    /**
+     * Calls the specified consumer once for each value, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> consumer) {
+        for (Object value : values) {
+            if (value != null) {
+                consumer.accept((V) value);
+            }
+        }
+    }
+
+    /**
+     * @return The number of keys with a value.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotOf(oldKeys[i], mask);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int slotOf(int key, int mask) {
+        // Spread sequential ids over the table
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
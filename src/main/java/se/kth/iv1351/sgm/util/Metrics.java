@@ -0,0 +1,116 @@
+package se.kth.iv1351.sgm.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The process wide registry of {@link Histogram}s. Each histogram is created the first
+ * time its name is used, and is then exported via JMX as
+ * <code>se.kth.iv1351.sgm:type=Histogram,name=&lt;name&gt;</code>.
+ *
+ * Also counts the database round trips made by each thread, so that the round trips
+ * of one command can be found by comparing the count before and after the command,
+ * and logs database statements that take longer than the system property
+ * <code>sgm.metrics.slowQueryMillis</code>.
+ */
+public final class Metrics {
+    private static final String JMX_DOMAIN = "se.kth.iv1351.sgm";
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<long[]> ROUND_TRIPS = ThreadLocal.withInitial(() -> new long[1]);
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("sgm.metrics.enabled", "true"));
+    private static final long SLOW_QUERY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("sgm.metrics.slowQueryMillis", 100));
+
+    private Metrics() {
+    }
+
+    /**
+     * @return false if the system property <code>sgm.metrics.enabled</code> is
+     * <code>false</code>, in which case the DAO and the database calls are not measured.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @return The histogram of durations in nanoseconds with the specified name.
+     */
+    public static Histogram latency(String name) {
+        return histogram(name, true);
+    }
+
+    /**
+     * @return The histogram of counts with the specified name.
+     */
+    public static Histogram counts(String name) {
+        return histogram(name, false);
+    }
+
+    /**
+     * @return All histograms, ordered by name.
+     */
+    public static List<Histogram> histograms() {
+        List<Histogram> all = new ArrayList<>(HISTOGRAMS.values());
+        all.sort(Comparator.comparing(Histogram::getName));
+        return all;
+    }
+
+    /**
+     * Forgets the values recorded in all histograms.
+     */
+    public static void reset() {
+        HISTOGRAMS.values().forEach(Histogram::reset);
+    }
+
+    /**
+     * Counts one database round trip made by the calling thread.
+     */
+    public static void countRoundTrip() {
+        ROUND_TRIPS.get()[0]++;
+    }
+
+    /**
+     * @return The number of database round trips the calling thread has made.
+     */
+    public static long roundTripsOfCurrentThread() {
+        return ROUND_TRIPS.get()[0];
+    }
+
+    /**
+     * Logs the specified statement if it took longer than the slow query threshold.
+     */
+    public static void logIfSlow(String sql, long elapsedNanos) {
+        if (elapsedNanos >= SLOW_QUERY_NANOS) {
+            System.err.printf("Slow query, %.1f ms: %s%n", elapsedNanos / 1e6, sql);
+        }
+    }
+
+    private static Histogram histogram(String name, boolean nanos) {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        return HISTOGRAMS.computeIfAbsent(name, newName -> {
+            Histogram created = new Histogram(newName, nanos);
+            register(created);
+            return created;
+        });
+    }
+
+    private static void register(Histogram histogram) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(histogram,
+                    new ObjectName(JMX_DOMAIN + ":type=Histogram,name=" + ObjectName.quote(histogram.getName())));
+        } catch (JMException e) {
+            // The histogram still works, it is just not visible through JMX.
+        }
+    }
+}
@@ -24,11 +24,28 @@
 
 package se.kth.iv1351.sgm.view;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import se.kth.iv1351.sgm.controller.Controller;
 import se.kth.iv1351.sgm.model.InstrumentDTO;
+import se.kth.iv1351.sgm.model.InstrumentSearch;
+import se.kth.iv1351.sgm.model.InstrumentStockException;
+import se.kth.iv1351.sgm.model.LeaseDTO;
+import se.kth.iv1351.sgm.model.LeaseRequest;
+import se.kth.iv1351.sgm.model.RentalException;
+import se.kth.iv1351.sgm.util.Histogram;
+import se.kth.iv1351.sgm.util.Metrics;
 
 /**
  * Reads and interprets user commands. This command interpreter is blocking, the user
@@ -36,9 +53,37 @@ import se.kth.iv1351.sgm.model.InstrumentDTO;
  */
 public class BlockingInterpreter {
     private static final String PROMPT = "> ";
-    private final Scanner console = new Scanner(System.in);
+    private static final String PAGE_OPTION = "--page";
+    private static final String SIZE_OPTION = "--size";
+    private static final String FORMAT_OPTION = "--format";
+    private static final String NEXT_OPTION = "--next";
+    private static final String PRICE_CONDITION = "price";
+    private static final char LEASE_ID_DELIMITER = ',';
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final String RESET_OPTION = "reset";
+    private static final Histogram[] COMMAND_LATENCIES = new Histogram[Command.values().length];
+    private static final Histogram[] COMMAND_ROUND_TRIPS = new Histogram[Command.values().length];
+    static {
+        for (Command command : Command.values()) {
+            String name = "command." + command.name().toLowerCase().replace('_', '-');
+            COMMAND_LATENCIES[command.ordinal()] = Metrics.latency(name);
+            COMMAND_ROUND_TRIPS[command.ordinal()] = Metrics.counts(name + ".roundTrips");
+        }
+    }
+    private final BufferedReader console;
+    private final PrintStream out;
+    private final boolean prompt;
     private Controller ctrl;
     private boolean keepReceivingCmds = false;
+    // Where each page of the last paged list starts
+    private String pagedType;
+    private int pagedSize;
+    private final List<Integer> pageStartAfterIds = new ArrayList<>();
+    // The last search continued after its last page, or null if that page was the last one
+    private InstrumentSearch nextSearch;
+    private int nextSearchSize;
+    // Created by the first list with --format
+    private InstrumentWriter instrumentWriter;
 
     /**
      * Creates a new instance that will use the specified controller for all operations.
@@ -46,7 +91,23 @@ public class BlockingInterpreter {
      * @param ctrl The controller used by this instance.
      */
     public BlockingInterpreter(Controller ctrl) {
+        this(ctrl, new BufferedReader(new InputStreamReader(System.in)), System.out, true);
+    }
+
+    /**
+     * Creates a new instance that reads commands from the specified reader and writes
+     * all output to the specified stream.
+     *
+     * @param ctrl   The controller used by this instance.
+     * @param in     The user commands, one per line.
+     * @param out    Where the results of the commands are written.
+     * @param prompt Whether to print a prompt before each command is read.
+     */
+    public BlockingInterpreter(Controller ctrl, BufferedReader in, PrintStream out, boolean prompt) {
         this.ctrl = ctrl;
+        this.console = in;
+        this.out = out;
+        this.prompt = prompt;
     }
 
     /**
@@ -59,53 +120,457 @@ public class BlockingInterpreter {
     /**
      * Interprets and performs user commands. This method will not return until the
      * UI has been stopped. The UI is stopped either when the user gives the
-     * "quit" command, or when the method <code>stop()</code> is called.
+     * "quit" command, when the method <code>stop()</code> is called, or when there
+     * is no more input.
      */
     public void handleCmds() {
         keepReceivingCmds = true;
         while (keepReceivingCmds) {
+            String enteredLine;
             try {
-                CmdLine cmdLine = new CmdLine(readNextLine());
-                switch (cmdLine.getCmd()) {
-                    case HELP:
-                        for (Command command : Command.values()) {
-                            if (command == Command.ILLEGAL_COMMAND) {
-                                continue;
-                            }
-                            System.out.println(command.toString().toLowerCase());
+                enteredLine = readNextLine();
+            } catch (SocketTimeoutException idle) {
+                out.println("Closing idle connection.");
+                break;
+            } catch (IOException e) {
+                break;
+            }
+            if (enteredLine == null) {
+                break;
+            }
+            execute(new CmdLine(enteredLine));
+            out.flush();
+        }
+    }
+
+    /**
+     * Performs one command, and records its latency and database round trips.
+     *
+     * @param cmdLine The command to perform.
+     * @return false if the command failed.
+     */
+    boolean execute(CmdLine cmdLine) {
+        long startNanos = System.nanoTime();
+        long startRoundTrips = Metrics.roundTripsOfCurrentThread();
+        boolean succeeded = true;
+        try {
+            switch (cmdLine.getCmd()) {
+                case HELP:
+                    for (Command command : Command.values()) {
+                        if (command == Command.ILLEGAL_COMMAND) {
+                            continue;
                         }
+                        out.println(command.toString().toLowerCase().replace('_', '-'));
+                    }
+                    break;
+                case QUIT:
+                    keepReceivingCmds = false;
+                    break;
+                case LIST:
+                    list(cmdLine);
+                    break;
+                case SEARCH:
+                    search(cmdLine);
+                    break;
+                case RENT:
+                    int leaseId = ctrl.createLease(
+                            Integer.parseInt(cmdLine.getParameter(0)),  // student_id
+                            Integer.parseInt(cmdLine.getParameter(1)),  // instrument_id
+                            cmdLine.getParameter(2));                   // end_day
+                    out.println("Created lease_id " + leaseId);
+                    break;
+                case RENT_BATCH:
+                    rentBatch(cmdLine.getParameter(0));
+                    break;
+                case TERMINATE:
+                    if (cmdLine.getParameter(0).indexOf(LEASE_ID_DELIMITER) >= 0) {
+                        terminateLeases(cmdLine.getParameter(0));
                         break;
-                    case QUIT:
-                        keepReceivingCmds = false;
+                    }
+                    int terminatedLeaseId = Integer.parseInt(cmdLine.getParameter(0));
+                    ctrl.terminateLease(terminatedLeaseId);
+                    out.println("Terminated lease_id " + terminatedLeaseId);
+                    break;
+                case TERMINATE_STUDENT:
+                    printTerminated(ctrl.terminateStudentLeases(Integer.parseInt(cmdLine.getParameter(0))));
+                    break;
+                case TERMINATE_TYPE:
+                    printTerminated(ctrl.terminateTypeLeases(cmdLine.getParameter(0)));
+                    break;
+                case EXPLAIN:
+                    explain(cmdLine).forEach(out::println);
+                    break;
+                case STATS:
+                    stats(cmdLine.getParameter(0));
+                    break;
+                default:
+                    out.println("illegal command");
+            }
+        } catch (Exception e) {
+            out.println("Operation failed");
+            out.println(e.getMessage());
+            e.printStackTrace();
+            succeeded = false;
+        }
+        COMMAND_LATENCIES[cmdLine.getCmd().ordinal()].recordSince(startNanos);
+        COMMAND_ROUND_TRIPS[cmdLine.getCmd().ordinal()].record(Metrics.roundTripsOfCurrentThread() - startRoundTrips);
+        return succeeded;
+    }
+
+    /**
+     * @return true if the command only reads, and does not depend on earlier commands
+     * given to the same interpreter, so that it may run at the same time as other such
+     * commands. Paged lists depend on the pages shown before.
+     */
+    static boolean isIndependentRead(CmdLine cmdLine) {
+        if (cmdLine.getCmd() != Command.LIST) {
+            return false;
+        }
+        for (int i = 0; cmdLine.getParameter(i) != null; i++) {
+            if (cmdLine.getParameter(i).equals(PAGE_OPTION) || cmdLine.getParameter(i).equals(SIZE_OPTION)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prints rentable instruments as they are read. With <code>--page N</code> and/or
+     * <code>--size M</code> only page N, of M instruments, is printed. Pages are found
+     * by instrument id rather than by offset, the first id of each page that has been
+     * shown is remembered so that moving back and forth does not read skipped pages again.
+     * With <code>--format csv|json|tsv</code> the instruments are written in that format
+     * by an {@link InstrumentWriter}.
+     */
+    private void list(CmdLine cmdLine) throws InstrumentStockException {
+        String type = "";
+        int page = 0;
+        int pageSize = DEFAULT_PAGE_SIZE;
+        InstrumentWriter.Format format = null;
+        for (int i = 0; cmdLine.getParameter(i) != null; i++) {
+            String parameter = cmdLine.getParameter(i);
+            if (parameter.equals(FORMAT_OPTION)) {
+                format = InstrumentWriter.formatNamed(cmdLine.getParameter(++i));
+            } else if (parameter.equals(PAGE_OPTION)) {
+                page = Integer.parseInt(cmdLine.getParameter(++i));
+            } else if (parameter.equals(SIZE_OPTION)) {
+                pageSize = Integer.parseInt(cmdLine.getParameter(++i));
+                page = Math.max(page, 1);
+            } else {
+                type = parameter;
+            }
+        }
+
+        if (page < 0 || (page > 0 && pageSize <= 0)) {
+            throw new IllegalArgumentException("Page and size must be positive.");
+        }
+        if (format == null) {
+            listPage(type, page, pageSize, out::println);
+            return;
+        }
+        if (instrumentWriter == null) {
+            instrumentWriter = new InstrumentWriter(out);
+        }
+        instrumentWriter.begin(format);
+        try {
+            listPage(type, page, pageSize, instrumentWriter::write);
+        } finally {
+            instrumentWriter.end();
+        }
+    }
+
+    /**
+     * Hands the instruments of the specified page to the printer, or all instruments if
+     * the page is zero.
+     */
+    private void listPage(String type, int page, int pageSize, Consumer<InstrumentDTO> printer)
+            throws InstrumentStockException {
+        if (page == 0) {
+            ctrl.forEachInstrument(type, 0, Integer.MAX_VALUE, printer);
+            return;
+        }
+        if (!type.equals(pagedType) || pageSize != pagedSize) {
+            pagedType = type;
+            pagedSize = pageSize;
+            pageStartAfterIds.clear();
+            pageStartAfterIds.add(0);
+        }
+        // Skip forward through pages that have not been shown, without printing them
+        while (pageStartAfterIds.size() < page) {
+            int[] lastId = {pageStartAfterIds.get(pageStartAfterIds.size() - 1)};
+            int count = ctrl.forEachInstrument(type, lastId[0], pageSize, instrument -> lastId[0] = instrument.getId());
+            if (count < pageSize) {
+                return;
+            }
+            pageStartAfterIds.add(lastId[0]);
+        }
+        int[] lastId = {pageStartAfterIds.get(page - 1)};
+        int count = ctrl.forEachInstrument(type, lastId[0], pageSize, instrument -> {
+            printer.accept(instrument);
+            lastId[0] = instrument.getId();
+        });
+        if (count == pageSize && pageStartAfterIds.size() == page) {
+            pageStartAfterIds.add(lastId[0]);
+        }
+    }
+
+    /**
+     * Prints one page of the rentable instruments that meet the conditions
+     * <code>type=T</code>, <code>brand=B</code>, <code>quality=Q</code> and
+     * <code>price&lt;=N</code>, where the operator may also be <code>&lt;</code>,
+     * <code>&gt;=</code>, <code>&gt;</code> or <code>=</code>. The instruments are
+     * ordered on id, or on price with <code>sort=price</code>, and a page holds
+     * <code>--size M</code> instruments, at most as many as the controller allows. If
+     * the page is full, <code>--next</code> prints the following page of the same
+     * search. <code>--format csv|json|tsv</code> works as for list.
+     */
+    private void search(CmdLine cmdLine) throws InstrumentStockException {
+        String type = null;
+        String brand = null;
+        String quality = null;
+        int minPrice = 0;
+        int maxPrice = Integer.MAX_VALUE;
+        InstrumentSearch.Order order = InstrumentSearch.Order.ID;
+        int pageSize = DEFAULT_PAGE_SIZE;
+        boolean next = false;
+        InstrumentWriter.Format format = null;
+        for (int i = 0; cmdLine.getParameter(i) != null; i++) {
+            String parameter = cmdLine.getParameter(i);
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            if (parameter.equals(FORMAT_OPTION)) {
+                format = InstrumentWriter.formatNamed(cmdLine.getParameter(++i));
+            } else if (parameter.equals(SIZE_OPTION)) {
+                pageSize = Integer.parseInt(cmdLine.getParameter(++i));
+            } else if (parameter.equals(NEXT_OPTION)) {
+                next = true;
+            } else if (parameter.startsWith(PRICE_CONDITION)) {
+                int valueStart = PRICE_CONDITION.length();
+                while (valueStart < parameter.length() && "<>=".indexOf(parameter.charAt(valueStart)) >= 0) {
+                    valueStart++;
+                }
+                int price = Integer.parseInt(parameter.substring(valueStart));
+                switch (parameter.substring(PRICE_CONDITION.length(), valueStart)) {
+                    case "<":
+                        maxPrice = Math.min(maxPrice, price - 1);
                         break;
-                    case LIST:
-                        List<? extends InstrumentDTO> instruments = ctrl.getInstruments(cmdLine.getParameter(0));
-                        for (InstrumentDTO instrument : instruments) {
-                           System.out.println(instrument);
-                        }
+                    case "<=":
+                        maxPrice = Math.min(maxPrice, price);
                         break;
-                    case RENT:
-                        ctrl.createLease(
-                                Integer.parseInt(cmdLine.getParameter(0)),  // student_id
-                                Integer.parseInt(cmdLine.getParameter(1)),  // instrument_id
-                                cmdLine.getParameter(2));                   // end_day
+                    case ">":
+                        minPrice = Math.max(minPrice, price + 1);
                         break;
-                    case TERMINATE:
-                        ctrl.terminateLease(Integer.parseInt(cmdLine.getParameter(0)));
+                    case ">=":
+                        minPrice = Math.max(minPrice, price);
+                        break;
+                    case "=":
+                        minPrice = Math.max(minPrice, price);
+                        maxPrice = Math.min(maxPrice, price);
                         break;
                     default:
-                        System.out.println("illegal command");
+                        throw new IllegalArgumentException("Expected price<=N, price<N, price>=N, price>N or price=N.");
                 }
-            } catch (Exception e) {
-                System.out.println("Operation failed");
-                System.out.println(e.getMessage());
-                e.printStackTrace();
+            } else if (parameter.startsWith("type=")) {
+                type = parameter.substring("type=".length());
+            } else if (parameter.startsWith("brand=")) {
+                brand = parameter.substring("brand=".length());
+            } else if (parameter.startsWith("quality=")) {
+                quality = parameter.substring("quality=".length());
+            } else if (parameter.startsWith("sort=")) {
+                order = InstrumentSearch.Order.valueOf(parameter.substring("sort=".length()).toUpperCase());
+            } else {
+                throw new IllegalArgumentException("Unknown search condition " + parameter +
+                        ", expected type=, brand=, quality=, price or sort=.");
+            }
+        }
+
+        InstrumentSearch search;
+        if (next) {
+            if (nextSearch == null) {
+                throw new IllegalArgumentException("There is no search to continue.");
+            }
+            search = nextSearch;
+            pageSize = nextSearchSize;
+        } else {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Size must be positive.");
+            }
+            search = new InstrumentSearch(type, brand, quality, minPrice, maxPrice, order);
+            pageSize = Math.min(pageSize, ctrl.getSearchMaxRows());
+        }
+        Consumer<InstrumentDTO> printer = out::println;
+        if (format != null) {
+            if (instrumentWriter == null) {
+                instrumentWriter = new InstrumentWriter(out);
             }
+            instrumentWriter.begin(format);
+            printer = instrumentWriter::write;
+        }
+        InstrumentDTO[] last = {null};
+        int count;
+        try {
+            Consumer<InstrumentDTO> pagePrinter = printer;
+            count = ctrl.searchInstruments(search, pageSize, instrument -> {
+                pagePrinter.accept(instrument);
+                last[0] = instrument;
+            });
+        } finally {
+            if (format != null) {
+                instrumentWriter.end();
+            }
+        }
+        if (count < pageSize) {
+            nextSearch = null;
+            return;
+        }
+        nextSearch = search.after(last[0]);
+        nextSearchSize = pageSize;
+        if (format == null) {
+            out.println("There may be more instruments, enter search --next to see them.");
         }
     }
 
-    private String readNextLine() {
-        System.out.print(PROMPT);
-        return console.nextLine();
+    /**
+     * Rents all instruments listed in the specified file, one lease per line written as
+     * <code>student_id,instrument_id,end_day</code>. A first line that is not a lease is
+     * treated as a header. Every line that was not rented is printed with the reason.
+     */
+    private void rentBatch(String fileName) throws IOException {
+        List<LeaseRequest> requests = new ArrayList<>();
+        int rejectedRows = 0;
+        int rowNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName))) {
+            String row;
+            while ((row = reader.readLine()) != null) {
+                rowNumber++;
+                if (row.isBlank()) {
+                    continue;
+                }
+                String[] fields = row.split(",");
+                try {
+                    if (fields.length != 3) {
+                        throw new NumberFormatException();
+                    }
+                    requests.add(new LeaseRequest(rowNumber,
+                            Integer.parseInt(fields[0].trim()),     // student_id
+                            Integer.parseInt(fields[1].trim()),     // instrument_id
+                            fields[2].trim()));                     // end_day
+                } catch (NumberFormatException invalidRow) {
+                    if (rowNumber == 1) {
+                        continue;
+                    }
+                    rejectedRows++;
+                    out.println("row " + rowNumber + ": Expected student_id,instrument_id,end_day");
+                }
+            }
+        }
+
+        ctrl.createLeases(requests);
+        int createdLeases = 0;
+        for (LeaseRequest request : requests) {
+            if (request.isRejected()) {
+                rejectedRows++;
+                out.println("row " + request.getRowNumber() + ": " + request.getRejectionReason());
+            } else {
+                createdLeases++;
+            }
+        }
+        out.println("Created " + createdLeases + " leases, rejected " + rejectedRows + " rows");
+    }
+
+    /**
+     * Terminates the leases with the ids in a list like <code>1,2,3</code>, and prints the
+     * ids that had no lease.
+     */
+    private void terminateLeases(String leaseIdList) throws RentalException {
+        String[] fields = leaseIdList.split(String.valueOf(LEASE_ID_DELIMITER));
+        int[] leaseIds = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            leaseIds[i] = Integer.parseInt(fields[i].trim());
+        }
+        List<? extends LeaseDTO> terminatedLeases = ctrl.terminateLeases(leaseIds);
+        printTerminated(terminatedLeases);
+        Set<Integer> terminatedIds = new HashSet<>();
+        terminatedLeases.forEach(lease -> terminatedIds.add(lease.getId()));
+        for (int leaseId : leaseIds) {
+            if (terminatedIds.add(leaseId)) {
+                out.println("lease_id " + leaseId + ": The specified lease does not exist.");
+            }
+        }
+    }
+
+    private void printTerminated(List<? extends LeaseDTO> terminatedLeases) {
+        for (LeaseDTO lease : terminatedLeases) {
+            out.println("Terminated lease_id " + lease.getId() + " of student " + lease.getStudentId() +
+                    ", instrument " + lease.getInstrumentId());
+        }
+        out.println("Terminated " + terminatedLeases.size() + " leases");
+    }
+
+    /**
+     * Executes the statements of <code>list [type] [--size M]</code>,
+     * <code>rent student_id instrument_id end_day</code> or <code>terminate lease_id</code>
+     * with <code>EXPLAIN (ANALYZE, BUFFERS)</code>, without changing anything. A list
+     * explains the first page, of all instruments unless a size is given.
+     *
+     * @return Each statement followed by its plan.
+     */
+    private List<String> explain(CmdLine cmdLine) throws InstrumentStockException, RentalException {
+        String explained = cmdLine.getParameter(0);
+        if ("list".equalsIgnoreCase(explained)) {
+            String type = "";
+            int limit = Integer.MAX_VALUE;
+            for (int i = 1; cmdLine.getParameter(i) != null; i++) {
+                String parameter = cmdLine.getParameter(i);
+                if (parameter.equals(SIZE_OPTION)) {
+                    limit = Integer.parseInt(cmdLine.getParameter(++i));
+                } else {
+                    type = parameter;
+                }
+            }
+            return ctrl.explainList(type, limit);
+        } else if ("rent".equalsIgnoreCase(explained)) {
+            return ctrl.explainRent(
+                    Integer.parseInt(cmdLine.getParameter(1)),  // student_id
+                    Integer.parseInt(cmdLine.getParameter(2)),  // instrument_id
+                    cmdLine.getParameter(3));                   // end_day
+        } else if ("terminate".equalsIgnoreCase(explained)) {
+            return ctrl.explainTerminate(Integer.parseInt(cmdLine.getParameter(1)));
+        }
+        throw new IllegalArgumentException("Expected explain list, explain rent or explain terminate.");
+    }
+
+    /**
+     * Prints the call count, median, 99th percentile and max of every histogram, or
+     * forgets all recorded values if the parameter is <code>reset</code>.
+     */
+    private void stats(String parameter) {
+        if (RESET_OPTION.equals(parameter)) {
+            Metrics.reset();
+            out.println("Statistics reset");
+            return;
+        }
+        out.printf("%-40s %10s %12s %12s %12s%n", "name", "calls", "p50", "p99", "max");
+        for (Histogram histogram : Metrics.histograms()) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.printf("%-40s %10d %12s %12s %12s%n", histogram.getName(), histogram.getCount(),
+                    format(histogram, histogram.getP50()), format(histogram, histogram.getP99()),
+                    format(histogram, histogram.getMax()));
+        }
+    }
+
+    private String format(Histogram histogram, long value) {
+        return histogram.isNanos() ? String.format("%.3f ms", value / 1e6) : Long.toString(value);
+    }
+
+    private String readNextLine() throws IOException {
+        if (prompt) {
+            out.print(PROMPT);
+            out.flush();
+        }
+        return console.readLine();
     }
 }
@@ -27,10 +27,19 @@ package se.kth.iv1351.sgm.view;
 /**
  * One line of user input, which should be a command and parameters associated
  * with that command (if any).
+ *
+ * The line is read once, character by character. Leading and trailing control
+ * characters and blanks are ignored, and words are separated by one or more
+ * blank characters (" "). The first word is the command, the rest are parameters.
  */
 class CmdLine {
-    private static final String PARAM_DELIMETER = " ";
+    private static final char PARAM_DELIMETER = ' ';
+    private static final char CMD_WORD_DELIMETER = '-';
+    private static final char CMD_NAME_WORD_DELIMETER = '_';
+    private static final Command[] COMMANDS = Command.values();
+    private static final int INITIAL_PARAM_CAPACITY = 4;
     private String[] params;
+    private int paramCount;
     private Command cmd;
     private final String enteredLine;
 
@@ -41,8 +50,11 @@ class CmdLine {
      */
     CmdLine(String enteredLine) {
         this.enteredLine = enteredLine;
-        parseCmd(enteredLine);
-        extractParams(enteredLine);
+        if (enteredLine == null) {
+            cmd = Command.ILLEGAL_COMMAND;
+            return;
+        }
+        parse(enteredLine);
     }
 
     /**
@@ -71,54 +83,106 @@ class CmdLine {
         if (params == null) {
             return null;
         }
-        if (index >= params.length) {
+        if (index >= paramCount) {
             return null;
         }
         return params[index];
     }
 
-    private String removeExtraSpaces(String source) {
-        if (source == null) {
-            return source;
+    /**
+     * If the first word is not a command, it is the first parameter. A line without
+     * parameters has one empty parameter.
+     */
+    private void parse(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int cmdEnd = start;
+        while (cmdEnd < end && line.charAt(cmdEnd) != PARAM_DELIMETER) {
+            cmdEnd++;
+        }
+        cmd = toCmd(line, start, cmdEnd);
+
+        int paramStart = start;
+        if (cmd != Command.ILLEGAL_COMMAND) {
+            paramStart = cmdEnd;
+            while (paramStart < end && line.charAt(paramStart) <= ' ') {
+                paramStart++;
+            }
+        }
+        params = new String[INITIAL_PARAM_CAPACITY];
+        int wordStart = paramStart;
+        for (int i = paramStart; i <= end; i++) {
+            if (i < end && line.charAt(i) != PARAM_DELIMETER) {
+                continue;
+            }
+            if (i > wordStart || paramCount == 0) {
+                addParam(line.substring(wordStart, i));
+            }
+            wordStart = i + 1;
         }
-        String oneOrMoreOccurences = "+";
-        return source.trim().replaceAll(PARAM_DELIMETER + oneOrMoreOccurences, PARAM_DELIMETER);
     }
 
-    private void parseCmd(String enteredLine) {
-        int cmdNameIndex = 0;
-        try {
-            String trimmed = removeExtraSpaces(enteredLine);
-            if (trimmed == null) {
-                cmd = Command.ILLEGAL_COMMAND;
-                return;
+    private void addParam(String param) {
+        if (paramCount == params.length) {
+            String[] grown = new String[params.length * 2];
+            System.arraycopy(params, 0, grown, 0, paramCount);
+            params = grown;
+        }
+        params[paramCount++] = param;
+    }
+
+    /**
+     * Commands are entered with dashes between words, for example rent-batch, in any case.
+     */
+    private Command toCmd(String line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) > '\u007f') {
+                return toCmdByUpperCase(line.substring(start, end));
+            }
+        }
+        for (Command command : COMMANDS) {
+            if (isCmdName(line, start, end, command.name())) {
+                return command;
             }
-            String[] enteredTokens = trimmed.split(PARAM_DELIMETER);
-            cmd = Command.valueOf(enteredTokens[cmdNameIndex].toUpperCase());
-        } catch (Exception failedToReadCmd) {
-            cmd = Command.ILLEGAL_COMMAND;
         }
+        return Command.ILLEGAL_COMMAND;
     }
 
-    private void extractParams(String enteredLine) {
-        if (enteredLine == null) {
-            params = null;
-            return;
+    private boolean isCmdName(String line, int start, int end, String cmdName) {
+        if (end - start != cmdName.length()) {
+            return false;
         }
-        String paramPartOfCmd = removeExtraSpaces(removeCmd(enteredLine));
-        if (paramPartOfCmd == null) {
-            params = null;
-            return;
+        for (int i = start; i < end; i++) {
+            char entered = line.charAt(i);
+            if (entered == CMD_WORD_DELIMETER) {
+                entered = CMD_NAME_WORD_DELIMETER;
+            } else if (entered >= 'a' && entered <= 'z') {
+                entered = (char) (entered - ('a' - 'A'));
+            }
+            if (entered != cmdName.charAt(i - start)) {
+                return false;
+            }
         }
-        params = paramPartOfCmd.split(PARAM_DELIMETER);
+        return true;
     }
 
-    private String removeCmd(String enteredLine) {
-        if (cmd == Command.ILLEGAL_COMMAND) {
-            return enteredLine;
+    /**
+     * Some letters outside ASCII have upper case forms in ASCII, so words with such
+     * letters are matched through <code>String.toUpperCase</code> instead.
+     */
+    private Command toCmdByUpperCase(String word) {
+        String cmdName = word.toUpperCase().replace(CMD_WORD_DELIMETER, CMD_NAME_WORD_DELIMETER);
+        for (Command command : COMMANDS) {
+            if (command.name().equals(cmdName)) {
+                return command;
+            }
         }
-        int indexAfterCmd = enteredLine.toUpperCase().indexOf(cmd.name()) + cmd.name().length();
-        String withoutCmd = enteredLine.substring(indexAfterCmd, enteredLine.length());
-        return withoutCmd.trim();
+        return Command.ILLEGAL_COMMAND;
     }
 }
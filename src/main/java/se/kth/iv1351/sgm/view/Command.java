@@ -32,12 +32,32 @@ public enum Command {
     // List all rentable_instruments
     LIST,
 
+    // Search rentable instruments by type, brand, quality and price, entered as search type=guitar price<=500
+    // sort=price, and continued with search --next
+    SEARCH,
+
     // Rent instrument
     RENT,
 
-    // Terminate rental
+    // Rent instruments listed in a csv file, entered as rent-batch
+    RENT_BATCH,
+
+    // Terminate rental, or several rentals entered as terminate 1,2,3
     TERMINATE,
 
+    // Terminate all rentals of a student, entered as terminate-student
+    TERMINATE_STUDENT,
+
+    // Terminate all rentals of an instrument type, entered as terminate-type
+    TERMINATE_TYPE,
+
+    // Show the query plans of list, rent or terminate, entered as explain list|rent|terminate followed by
+    // the parameters of that command
+    EXPLAIN,
+
+    // Print call counts and latencies, or forget them with stats reset
+    STATS,
+
     // Lists all commands
     HELP,
 
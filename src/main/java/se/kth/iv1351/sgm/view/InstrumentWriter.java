@@ -0,0 +1,362 @@
+package se.kth.iv1351.sgm.view;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import se.kth.iv1351.sgm.model.InstrumentDTO;
+
+/**
+ * Writes instruments as CSV, JSON or TSV for other programs to read. The fields of
+ * each instrument are encoded straight into a byte buffer, without creating any
+ * strings, and the buffer is written to the output each time it is full. The buffer
+ * is reused for all instruments written by this instance.
+ *
+ * CSV is written as defined by RFC 4180, with a header line. TSV has a header line,
+ * and tabs, line breaks and backslashes in fields are escaped with backslashes.
+ * JSON is one array with one object per instrument.
+ */
+class InstrumentWriter {
+    /**
+     * The formats that instruments can be written in.
+     */
+    enum Format {
+        CSV, JSON, TSV
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String[] FIELD_NAMES = {"id", "price", "type", "brand", "quality"};
+    private static final byte[][] JSON_NAMES = new byte[FIELD_NAMES.length][];
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+            'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final int MAX_INT_LENGTH = 11;
+    // For each format, the ASCII characters that are escaped or make a field quoted
+    private static final boolean[][] SPECIAL_ASCII = new boolean[Format.values().length][128];
+    static {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            JSON_NAMES[i] = ("\"" + FIELD_NAMES[i] + "\":").getBytes(StandardCharsets.US_ASCII);
+        }
+        for (char c : new char[]{',', '"', '\n', '\r'}) {
+            SPECIAL_ASCII[Format.CSV.ordinal()][c] = true;
+        }
+        for (char c : new char[]{'\t', '\n', '\r', '\\'}) {
+            SPECIAL_ASCII[Format.TSV.ordinal()][c] = true;
+        }
+        for (char c = 0; c < ' '; c++) {
+            SPECIAL_ASCII[Format.JSON.ordinal()][c] = true;
+        }
+        SPECIAL_ASCII[Format.JSON.ordinal()]['"'] = true;
+        SPECIAL_ASCII[Format.JSON.ordinal()]['\\'] = true;
+    }
+    private final PrintStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+    private Format format;
+    private boolean[] specialAscii;
+    private int rowCount;
+
+    /**
+     * @param out Where the instruments are written.
+     */
+    InstrumentWriter(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @param name The name of a format, in any case.
+     * @return The format with the specified name.
+     * @throws IllegalArgumentException If there is no format with the specified name.
+     */
+    static Format formatNamed(String name) {
+        if (name != null) {
+            for (Format format : Format.values()) {
+                if (format.name().equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown format " + name + ", expected csv, json or tsv.");
+    }
+
+    /**
+     * Starts writing instruments in the specified format.
+     */
+    void begin(Format format) {
+        this.format = format;
+        this.specialAscii = SPECIAL_ASCII[format.ordinal()];
+        this.rowCount = 0;
+        if (format == Format.JSON) {
+            put('[');
+            return;
+        }
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            if (i > 0) {
+                putSeparator();
+            }
+            putField(FIELD_NAMES[i]);
+        }
+        put('\n');
+    }
+
+    /**
+     * Writes one instrument.
+     */
+    void write(InstrumentDTO instrument) {
+        if (format == Format.JSON) {
+            writeJson(instrument);
+        } else {
+            putInt(instrument.getId());
+            putSeparator();
+            putInt(instrument.getPrice());
+            putSeparator();
+            putField(instrument.getType());
+            putSeparator();
+            putField(instrument.getBrand());
+            putSeparator();
+            putField(instrument.getQuality());
+            put('\n');
+        }
+        rowCount++;
+    }
+
+    /**
+     * Finishes the instruments written since {@link #begin}, and writes everything that
+     * is buffered to the output.
+     */
+    void end() {
+        if (format == Format.JSON) {
+            put('\n');
+            put(']');
+            put('\n');
+        }
+        flushBuffer();
+        out.flush();
+    }
+
+    private void writeJson(InstrumentDTO instrument) {
+        if (rowCount > 0) {
+            put(',');
+        }
+        put('\n');
+        put('{');
+        putBytes(JSON_NAMES[0]);
+        putInt(instrument.getId());
+        put(',');
+        putBytes(JSON_NAMES[1]);
+        putInt(instrument.getPrice());
+        put(',');
+        putBytes(JSON_NAMES[2]);
+        putJsonString(instrument.getType());
+        put(',');
+        putBytes(JSON_NAMES[3]);
+        putJsonString(instrument.getBrand());
+        put(',');
+        putBytes(JSON_NAMES[4]);
+        putJsonString(instrument.getQuality());
+        put('}');
+    }
+
+    private void putSeparator() {
+        put(format == Format.TSV ? '\t' : ',');
+    }
+
+    private void putField(String value) {
+        if (value == null) {
+            return;
+        }
+        if (format == Format.TSV) {
+            putTsvField(value);
+        } else {
+            putCsvField(value);
+        }
+    }
+
+    private void putCsvField(String value) {
+        if (putPlain(value)) {
+            return;
+        }
+        boolean quoted = false;
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (quoted) {
+            put('"');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                put('"');
+            }
+            i = putChar(value, i);
+        }
+        if (quoted) {
+            put('"');
+        }
+    }
+
+    private void putTsvField(String value) {
+        if (putPlain(value)) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t':
+                    putEscape('t');
+                    break;
+                case '\n':
+                    putEscape('n');
+                    break;
+                case '\r':
+                    putEscape('r');
+                    break;
+                case '\\':
+                    putEscape('\\');
+                    break;
+                default:
+                    i = putChar(value, i);
+            }
+        }
+    }
+
+    private void putJsonString(String value) {
+        if (value == null) {
+            put('n');
+            put('u');
+            put('l');
+            put('l');
+            return;
+        }
+        put('"');
+        if (putPlain(value)) {
+            put('"');
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                putEscape(c);
+            } else if (c == '\n') {
+                putEscape('n');
+            } else if (c == '\r') {
+                putEscape('r');
+            } else if (c == '\t') {
+                putEscape('t');
+            } else if (c < ' ') {
+                putEscape('u');
+                put('0');
+                put('0');
+                put(HEX_DIGITS[c >> 4]);
+                put(HEX_DIGITS[c & 0xf]);
+            } else {
+                i = putChar(value, i);
+            }
+        }
+        put('"');
+    }
+
+    private void putEscape(char escaped) {
+        put('\\');
+        put(escaped);
+    }
+
+    /**
+     * Encodes the character at the specified index as UTF-8. A surrogate pair is encoded
+     * as one code point.
+     *
+     * @return The index of the last encoded character, which is the index after the
+     * specified index if a surrogate pair was encoded.
+     */
+    private int putChar(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            put(c);
+        } else if (c < 0x800) {
+            put(0xc0 | c >> 6);
+            put(0x80 | c & 0x3f);
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            put(0xf0 | codePoint >> 18);
+            put(0x80 | codePoint >> 12 & 0x3f);
+            put(0x80 | codePoint >> 6 & 0x3f);
+            put(0x80 | codePoint & 0x3f);
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            put('?');
+        } else {
+            put(0xe0 | c >> 12);
+            put(0x80 | c >> 6 & 0x3f);
+            put(0x80 | c & 0x3f);
+        }
+        return index;
+    }
+
+    /**
+     * Copies a string that is all ASCII and has no characters that are special in the
+     * current format straight into the buffer.
+     *
+     * @return false if nothing was written, because the string must be encoded one
+     * character at a time.
+     */
+    private boolean putPlain(String value) {
+        int length = value.length();
+        if (length > buffer.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80 || specialAscii[c]) {
+                return false;
+            }
+        }
+        if (count + length > buffer.length) {
+            flushBuffer();
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[count + i] = (byte) value.charAt(i);
+        }
+        count += length;
+        return true;
+    }
+
+    private void putBytes(byte[] bytes) {
+        if (count + bytes.length > buffer.length) {
+            flushBuffer();
+        }
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void putInt(int value) {
+        if (count + MAX_INT_LENGTH > buffer.length) {
+            flushBuffer();
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            buffer[count++] = '-';
+            remaining = -remaining;
+        }
+        int length = 1;
+        for (long rest = remaining / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        count += length;
+        for (int i = count - 1; i >= count - length; i--) {
+            buffer[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+    }
+
+    private void put(int b) {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    private void flushBuffer() {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+}
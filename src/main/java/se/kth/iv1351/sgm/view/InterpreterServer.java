@@ -0,0 +1,156 @@
+package se.kth.iv1351.sgm.view;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.kth.iv1351.sgm.controller.Controller;
+
+/**
+ * Accepts TCP connections on the loopback interface and runs a {@link BlockingInterpreter}
+ * for each of them, so that many desks can use the same controller at once. Each
+ * connection is served by its own thread, and therefore has its own database
+ * transaction. At most a fixed number of connections are served at a time, further
+ * connections are told that the server is busy and closed.
+ */
+public class InterpreterServer {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private final Controller ctrl;
+    private final int port;
+    private final int maxClients;
+    private final int idleTimeoutMillis;
+    private final long shutdownGraceMillis;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor clientThreads;
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Creates a new instance that will use the specified controller for all clients.
+     * The limits are read from the system properties <code>sgm.server.maxClients</code>,
+     * <code>sgm.server.idleTimeoutSeconds</code> and <code>sgm.server.shutdownGraceSeconds</code>.
+     *
+     * @param ctrl The controller shared by all clients.
+     * @param port The port to listen to.
+     */
+    public InterpreterServer(Controller ctrl, int port) {
+        this.ctrl = ctrl;
+        this.port = port;
+        this.maxClients = Integer.getInteger("sgm.server.maxClients", 200);
+        this.idleTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.server.idleTimeoutSeconds", 300));
+        this.shutdownGraceMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("sgm.server.shutdownGraceSeconds", 10));
+        AtomicInteger clientNumber = new AtomicInteger();
+        this.clientThreads = new ThreadPoolExecutor(maxClients, maxClients, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "client-" + clientNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.clientThreads.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Accepts connections until {@link #stop()} is called.
+     *
+     * @throws IOException If unable to listen to the port.
+     */
+    public void serve() throws IOException {
+        serverSocket = new ServerSocket(port, maxClients, InetAddress.getLoopbackAddress());
+        System.out.println("Listening on port " + serverSocket.getLocalPort());
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException closed) {
+                break;
+            }
+            try {
+                clientThreads.execute(() -> serveClient(client));
+            } catch (RejectedExecutionException busy) {
+                rejectClient(client);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, lets connected clients finish their ongoing command
+     * within the shutdown grace period, and then closes all remaining connections.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+            // Closing anyway.
+        }
+        clientThreads.shutdown();
+        for (Socket client : clients) {
+            try {
+                // Clients waiting for their next command get end of input and quit.
+                client.shutdownInput();
+            } catch (IOException ignored) {
+                // The client is closed below if it does not finish.
+            }
+        }
+        try {
+            if (!clientThreads.awaitTermination(shutdownGraceMillis, TimeUnit.MILLISECONDS)) {
+                clients.forEach(this::close);
+                clientThreads.shutdownNow();
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serveClient(Socket client) {
+        clients.add(client);
+        try {
+            client.setSoTimeout(idleTimeoutMillis);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            // Flushed once per command by the interpreter, so that a long listing is not one write per line
+            PrintStream out = new PrintStream(new BufferedOutputStream(client.getOutputStream(), OUTPUT_BUFFER_SIZE),
+                    false, StandardCharsets.UTF_8);
+            new BlockingInterpreter(ctrl, in, out, true).handleCmds();
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Lost connection to client: " + e.getMessage());
+        } finally {
+            clients.remove(client);
+            close(client);
+        }
+    }
+
+    private void rejectClient(Socket client) {
+        try {
+            PrintStream out = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false,
+                    StandardCharsets.UTF_8);
+            out.println("Server busy, try again later.");
+            out.flush();
+        } catch (IOException ignored) {
+            // The client is closed anyway.
+        }
+        close(client);
+    }
+
+    private void close(Socket client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            // Nothing more to do.
+        }
+    }
+}
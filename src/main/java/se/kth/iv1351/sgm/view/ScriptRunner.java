@@ -0,0 +1,220 @@
+package se.kth.iv1351.sgm.view;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.kth.iv1351.sgm.controller.Controller;
+
+/**
+ * Performs the commands read from a file or a pipe without prompting, as fast as
+ * possible. Commands that only read, see {@link BlockingInterpreter#isIndependentRead},
+ * are performed by a pool of threads while the following lines are read, so that
+ * several of them run against the database at once. Every other command waits until
+ * all earlier commands are done, and is then performed alone, so each command sees the
+ * changes made by the commands before it. The output is written in input order,
+ * followed by a summary of all commands. The oldest pending command writes its output
+ * straight through, while the output of later commands is buffered until their turn.
+ * When the buffered output of all commands exceeds a limit, commands that are not the
+ * oldest pause until it is their turn, so that a script of many long listings does not
+ * hold them all in memory.
+ */
+public class ScriptRunner {
+    private final Controller ctrl;
+    private final BufferedReader in;
+    private final PrintStream out;
+    private final int threads;
+    private final int maxPending;
+    private final long maxBufferedBytes;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    // Performs the commands that run alone, and remembers the pages shown by paged lists
+    private final BlockingInterpreter sequentialInterpreter;
+    private final Deque<PendingCommand> pending = new ArrayDeque<>();
+    private final Map<Command, int[]> countsByCommand = new EnumMap<>(Command.class);
+
+    /**
+     * Creates a new instance. The number of threads performing reads is read from the
+     * system property <code>sgm.script.threads</code>, the number of commands that
+     * may be read ahead of the output from <code>sgm.script.maxPending</code>, and the
+     * number of bytes of output they may buffer from <code>sgm.script.maxBufferedBytes</code>.
+     *
+     * @param ctrl The controller used by all commands.
+     * @param in   The commands, one per line.
+     * @param out  Where the output of the commands and the summary is written.
+     */
+    public ScriptRunner(Controller ctrl, BufferedReader in, PrintStream out) {
+        this.ctrl = ctrl;
+        this.in = in;
+        this.out = out;
+        this.threads = Integer.getInteger("sgm.script.threads", 4);
+        this.maxPending = Integer.getInteger("sgm.script.maxPending", 64);
+        this.maxBufferedBytes = Long.getLong("sgm.script.maxBufferedBytes", 16 << 20);
+        this.sequentialInterpreter = new BlockingInterpreter(ctrl, null, out, false);
+    }
+
+    /**
+     * Performs all commands until the end of the input or a <code>quit</code> command,
+     * and writes the summary.
+     *
+     * @throws IOException If unable to read the input.
+     */
+    public void run() throws IOException {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService readers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "script-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long startNanos = System.nanoTime();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                CmdLine cmdLine = new CmdLine(line);
+                if (cmdLine.getCmd() == Command.QUIT) {
+                    break;
+                }
+                if (BlockingInterpreter.isIndependentRead(cmdLine)) {
+                    PendingOutput output = new PendingOutput();
+                    pending.addLast(new PendingCommand(cmdLine.getCmd(), output,
+                            readers.submit(() -> executeAlone(cmdLine, output))));
+                    if (pending.size() >= maxPending) {
+                        writeOldestPending();
+                    }
+                } else {
+                    writeAllPending();
+                    count(cmdLine.getCmd(), sequentialInterpreter.execute(cmdLine));
+                }
+            }
+            writeAllPending();
+        } finally {
+            readers.shutdownNow();
+        }
+        writeSummary(System.nanoTime() - startNanos);
+        out.flush();
+    }
+
+    private boolean executeAlone(CmdLine cmdLine, PendingOutput output) {
+        PrintStream commandOut = new PrintStream(new BufferedOutputStream(output), false, StandardCharsets.UTF_8);
+        boolean succeeded = new BlockingInterpreter(ctrl, null, commandOut, false).execute(cmdLine);
+        commandOut.flush();
+        return succeeded;
+    }
+
+    private void writeAllPending() throws IOException {
+        while (!pending.isEmpty()) {
+            writeOldestPending();
+        }
+    }
+
+    private void writeOldestPending() throws IOException {
+        PendingCommand oldest = pending.removeFirst();
+        oldest.output.writeThrough(out);
+        boolean succeeded;
+        try {
+            succeeded = oldest.result.get();
+        } catch (ExecutionException e) {
+            // Commands report their own failures, so this is an error in the program.
+            throw new IllegalStateException("A command failed unexpectedly.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a command.", e);
+        }
+        count(oldest.cmd, succeeded);
+    }
+
+    private void count(Command cmd, boolean succeeded) {
+        int[] counts = countsByCommand.computeIfAbsent(cmd, c -> new int[2]);
+        counts[0]++;
+        if (!succeeded || cmd == Command.ILLEGAL_COMMAND) {
+            counts[1]++;
+        }
+    }
+
+    private void writeSummary(long elapsedNanos) {
+        int total = 0;
+        int failed = 0;
+        for (int[] counts : countsByCommand.values()) {
+            total += counts[0];
+            failed += counts[1];
+        }
+        double elapsedSeconds = elapsedNanos / 1e9;
+        out.printf("Performed %d commands in %.2f s, %.1f per second, %d failed%n", total, elapsedSeconds,
+                total / elapsedSeconds, failed);
+        for (Map.Entry<Command, int[]> entry : countsByCommand.entrySet()) {
+            out.printf("  %s: %d, %d failed%n", entry.getKey().name().toLowerCase().replace('_', '-'),
+                    entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+
+    private static class PendingCommand {
+        private final Command cmd;
+        private final PendingOutput output;
+        private final Future<Boolean> result;
+
+        PendingCommand(Command cmd, PendingOutput output, Future<Boolean> result) {
+            this.cmd = cmd;
+            this.output = output;
+            this.result = result;
+        }
+    }
+
+    /**
+     * The output of a command performed by a pool thread, which is buffered until the
+     * command is the oldest pending one, and from then on written straight through.
+     */
+    private class PendingOutput extends OutputStream {
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        // Null until the command is the oldest pending one
+        private OutputStream target;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (target == null && bufferedBytes.get() >= maxBufferedBytes) {
+                try {
+                    wait();
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to write the output.");
+                }
+            }
+            if (target != null) {
+                target.write(bytes, offset, length);
+            } else {
+                buffer.write(bytes, offset, length);
+                bufferedBytes.addAndGet(length);
+            }
+        }
+
+        /**
+         * Writes what has been buffered to the specified stream, and lets the command
+         * write straight to it from now on.
+         */
+        synchronized void writeThrough(OutputStream out) throws IOException {
+            buffer.writeTo(out);
+            bufferedBytes.addAndGet(-buffer.size());
+            buffer = null;
+            target = out;
+            notifyAll();
+        }
+    }
+}